@@ -0,0 +1,166 @@
+package com.niraninteractive.solr.processor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.schema.TrieLongField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link CompositeIdUpdateProcessorFactory.CompositeIdUpdateProcessor#processAdd}
+ * in isolation. The processor is built from the factory exactly as Solr builds
+ * it, except that the extraction plan is compiled from hand made schema
+ * fields, and the next processor in the chain is an in-memory terminal that
+ * only reads back the generated id.
+ * <p>
+ * Run with the GC profiler to get bytes allocated per operation
+ * (<code>gc.alloc.rate.norm</code>):
+ * <pre>
+ *	java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ *
+ * @author afajem
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CompositeIdUpdateProcessorBenchmark {
+
+	private static final String COMPOSITE_ID_FIELD = "compositeId";
+	private static final String POSTFIX_FIELD = "id";
+	private static final String PREFIX_FIELD = "prefix";
+
+	/** Number of prefix fields making up the shard key */
+	@Param({ "1", "2", "4", "8" })
+	public int prefixFieldCount;
+
+	/** Length of the prefix and postfix values */
+	@Param({ "short", "long" })
+	public String valueLength;
+
+	/** Type of the prefix and postfix fields */
+	@Param({ "string", "numeric" })
+	public String fieldType;
+
+	@Param({ "true", "false" })
+	public boolean overwriteDupes;
+
+	private SolrQueryRequest request;
+	private UpdateRequestProcessor processor;
+	private TerminalProcessor terminal;
+	private AddUpdateCommand cmd;
+
+
+	@Setup
+	public void setUp() {
+		boolean numeric = "numeric".equals(fieldType);
+		boolean longValues = "long".equals(valueLength);
+
+		StringBuilder prefixFields = new StringBuilder();
+		Map<String, SchemaField> schemaFields = new HashMap<String, SchemaField>();
+		SolrInputDocument document = new SolrInputDocument();
+		for (int i = 0; i < prefixFieldCount; i++) {
+			String name = PREFIX_FIELD + i;
+			if (i > 0) {
+				prefixFields.append(',');
+			}
+			prefixFields.append(name);
+			schemaFields.put(name, new SchemaField(name, fieldType(numeric)));
+			document.setField(name, value(numeric, longValues, i + 1));
+		}
+		schemaFields.put(POSTFIX_FIELD, new SchemaField(POSTFIX_FIELD, fieldType(numeric)));
+		document.setField(POSTFIX_FIELD, value(numeric, longValues, 4242));
+
+		NamedList<Object> args = new NamedList<Object>();
+		args.add("compositeIdField", COMPOSITE_ID_FIELD);
+		args.add("prefixFields", prefixFields.toString());
+		args.add("postfixField", POSTFIX_FIELD);
+		args.add("overwriteDupes", overwriteDupes);
+
+		CompositeIdUpdateProcessorFactory factory = new CompositeIdUpdateProcessorFactory();
+		factory.init(args);
+		factory.informSchemaFields(schemaFields);
+
+		request = new LocalSolrQueryRequest(null, new ModifiableSolrParams());
+		terminal = new TerminalProcessor();
+		processor = factory.getInstance(request, new SolrQueryResponse(), terminal);
+
+		cmd = new AddUpdateCommand(request);
+		cmd.solrDoc = document;
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		request.close();
+	}
+
+
+	@Benchmark
+	public Object processAdd() throws IOException {
+		processor.processAdd(cmd);
+		return terminal.lastId;
+	}
+
+
+	private static FieldType fieldType(boolean numeric) {
+		return numeric ? new TrieLongField() : new StrField();
+	}
+
+
+	private static Object value(boolean numeric, boolean longValue, int seed) {
+		if (numeric) {
+			return longValue ? Long.MAX_VALUE - seed : (long) seed;
+		}
+		StringBuilder value = new StringBuilder("value-").append(seed);
+		while (longValue && value.length() < 64) {
+			value.append('-').append(seed);
+		}
+		return value.toString();
+	}
+
+
+	/**
+	 * End of the chain: reads the generated id so the work cannot be elided.
+	 */
+	private static final class TerminalProcessor extends UpdateRequestProcessor {
+
+		Object lastId;
+
+		TerminalProcessor() {
+			super(null);
+		}
+
+		@Override
+		public void processAdd(AddUpdateCommand cmd) throws IOException {
+			lastId = cmd.getSolrInputDocument().getFieldValue(COMPOSITE_ID_FIELD);
+		}
+	}
+}
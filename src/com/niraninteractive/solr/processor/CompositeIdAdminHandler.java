@@ -0,0 +1,138 @@
+package com.niraninteractive.solr.processor;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+/**
+ * Request handler reporting the configuration and statistics of the
+ * {@link CompositeIdUpdateProcessorFactory} of an update chain, and switching
+ * it on and off while documents are being indexed. The chain is named with
+ * the <code>update.chain</code> parameter, usually set in the handler's
+ * defaults; without it the core's default chain is used.
+ * <p>
+ * The <code>action</code> parameter takes one of the following values:
+ * <li><code>status</code> (default) - Returns the configuration and statistics.</li>
+ * <li><code>enable</code> / <code>disable</code> - Turns composite id
+ * generation on or off for requests that start afterwards.</li>
+ * <li><code>reconfigure</code> - Applies the request parameters named in
+ * {@link CompositeIdUpdateProcessorFactory#RECONFIGURABLE_PARAMS} as processor
+ * configuration parameters, see
+ * {@link CompositeIdUpdateProcessorFactory#reconfigure(SolrParams)}. Other
+ * request parameters, such as <code>wt</code>, are ignored, except that a
+ * request naming <code>insertOnlyTokens</code> or <code>shardKeyBitsFile</code>
+ * is refused.</li>
+ * <p>
+ * Every action returns the configuration and statistics in effect afterwards.
+ * Reading the statistics only sums striped counters and never slows indexing
+ * threads down.
+ *
+ * <pre>
+ *	&lt;requestHandler name="/admin/compositeid" class="com.niraninteractive.solr.processor.CompositeIdAdminHandler"&gt;
+ *		&lt;lst name="defaults"&gt;
+ *			&lt;str name="update.chain"&gt;myDedupe&lt;/str&gt;
+ *		&lt;/lst&gt;
+ *	&lt;/requestHandler&gt;
+ * </pre>
+ *
+ * @author afajem
+ */
+public class CompositeIdAdminHandler extends RequestHandlerBase {
+
+	/** Processor parameters that a request must not try to change */
+	private static final String[] PROTECTED_PARAMS = { "insertOnlyTokens", "shardKeyBitsFile" };
+
+	@Override
+	public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+		SolrParams params = req.getParams();
+		String chainName = params.get(UpdateParams.UPDATE_CHAIN);
+		CompositeIdUpdateProcessorFactory factory = findFactory(req, chainName);
+
+		String action = params.get("action", "status");
+		if ("enable".equals(action)) {
+			factory.setEnabled(true);
+		}
+		else if ("disable".equals(action)) {
+			factory.setEnabled(false);
+		}
+		else if ("reconfigure".equals(action)) {
+			factory.reconfigure(reconfigureParams(params));
+		}
+		else if (!"status".equals(action)) {
+			throw new SolrException(ErrorCode.BAD_REQUEST,
+				"Unknown action, expected status, enable, disable or reconfigure: " + action);
+		}
+
+		rsp.add("config", factory.getConfig().toNamedList());
+		rsp.add("stats", factory.getStatistics());
+	}
+
+
+	/**
+	 * Picks the processor configuration parameters out of the request
+	 * parameters
+	 *
+	 * @param params the request parameters
+	 * @return the parameters to reconfigure the processor with
+	 * @throws SolrException if the request tries to change a protected parameter
+	 */
+	private static SolrParams reconfigureParams(SolrParams params) {
+		for (String name : PROTECTED_PARAMS) {
+			if (params.get(name) != null) {
+				throw new SolrException(ErrorCode.FORBIDDEN,
+					name + " can only be changed in the core's configuration");
+			}
+		}
+		ModifiableSolrParams config = new ModifiableSolrParams();
+		for (String name : CompositeIdUpdateProcessorFactory.RECONFIGURABLE_PARAMS) {
+			String[] values = params.getParams(name);
+			if (values != null) {
+				config.set(name, values);
+			}
+		}
+		return config;
+	}
+
+
+	/**
+	 * Finds the composite id processor factory of an update chain
+	 *
+	 * @param req the request, whose core holds the chain
+	 * @param chainName the name of the chain, or <code>null</code> for the default chain
+	 * @return the factory
+	 * @throws SolrException if the chain has no such factory
+	 */
+	static CompositeIdUpdateProcessorFactory findFactory(SolrQueryRequest req,
+			String chainName) {
+		UpdateRequestProcessorChain chain = req.getCore().getUpdateProcessingChain(chainName);
+		if (chain != null) {
+			for (UpdateRequestProcessorFactory factory : chain.getFactories()) {
+				if (factory instanceof CompositeIdUpdateProcessorFactory) {
+					return (CompositeIdUpdateProcessorFactory) factory;
+				}
+			}
+		}
+		throw new SolrException(ErrorCode.BAD_REQUEST,
+			"No CompositeIdUpdateProcessorFactory in update chain: " 
+				+ (chainName == null ? "(default)" : chainName));
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Reports and controls the composite id update processor of an update chain";
+	}
+
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+}
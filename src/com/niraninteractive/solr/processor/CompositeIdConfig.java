@@ -0,0 +1,252 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Immutable snapshot of the configuration of a
+ * {@link CompositeIdUpdateProcessorFactory}. The factory publishes one
+ * snapshot at a time through a volatile field, and each processor reads it
+ * once when it is created, so a request sees one consistent configuration
+ * from start to finish however often the configuration is changed.
+ * <p>
+ * A snapshot is first parsed from the configuration parameters, then compiled
+ * against the schema, which adds the field extraction plan, the shard key bit
+ * table and a shard key cache built for that table. Changes are made by
+ * creating a new snapshot.
+ *
+ * @author afajem
+ */
+final class CompositeIdConfig {
+
+	/** How a composite id already present on an incoming document is treated */
+	enum ExistingIdMode {
+		/** The id is always built again from the document fields */
+		REBUILD,
+		/** A matching id is kept untouched, any other id is built again */
+		FIX,
+		/** A matching id is kept untouched, any other id fails the update */
+		REJECT
+	}
+
+	/** The separator between the prefix field groups of each shard key level */
+	private final static char SHARD_KEY_LEVEL_SEPARATOR = ';';
+	/** Default maximum number of entries in the shard key cache */
+	private final static int DEFAULT_SHARD_KEY_CACHE_SIZE = 4096;
+	/** Default number of documents a tolerant request may leave out before it fails */
+	private final static int DEFAULT_MAX_FAILURES = 100;
+
+	/** The name of the field holding the composite id */
+	final String compositeIdField;
+	/** The prefix fields of all shard key levels, in shard key order */
+	final List<String> prefixFields;
+	/** The prefix fields of each shard key level */
+	final List<List<String>> prefixFieldLevels;
+	/** The name of the field holding the document id */
+	final String postfixField;
+	/** Whether the composite id field is also the postfix field */
+	final boolean postfixIsCompositeId;
+	/** Whether duplicates are overwritten */
+	final boolean overwriteDupes;
+	/** Whether composite ids are built at all */
+	final boolean enabled;
+	/** Whether date values are written in Solr's canonical form rather than with <code>Date.toString()</code> */
+	final boolean canonicalDates;
+	/** Whether updates forwarded by a shard leader keep the id they carry */
+	final boolean skipOnReplicas;
+	/** How composite ids already carried by incoming documents are treated */
+	final ExistingIdMode existingIdMode;
+	/** Whether invalid documents are left out instead of failing the request */
+	final boolean tolerant;
+	/** The number of documents a tolerant request may leave out, negative if unlimited */
+	final int maxFailures;
+	/** The tokens that allow a request to add documents without overwriting, empty if none */
+	final Set<String> insertOnlyTokens;
+	/** The maximum number of entries in the shard key cache, 0 if disabled */
+	final int shardKeyCacheSize;
+	/** The number of route hash bits taken from each shard key level, or <code>null</code> */
+	final String shardKeyBitsDefaults;
+	/** The resource holding per shard key bit counts, or <code>null</code> */
+	final String shardKeyBitsFile;
+
+	/** The field extraction plan, or <code>null</code> until compiled */
+	final CompositeIdExtractionPlan extractionPlan;
+	/** The bit counts written after the shard key */
+	final ShardKeyBits shardKeyBits;
+	/** The cache of shard keys built with {@link #shardKeyBits}, or <code>null</code> if disabled */
+	final ShardKeyCache shardKeyCache;
+
+
+	private CompositeIdConfig(CompositeIdConfig parsed, boolean enabled,
+			CompositeIdExtractionPlan extractionPlan, ShardKeyBits shardKeyBits,
+			ShardKeyCache shardKeyCache) {
+		this.compositeIdField = parsed.compositeIdField;
+		this.prefixFields = parsed.prefixFields;
+		this.prefixFieldLevels = parsed.prefixFieldLevels;
+		this.postfixField = parsed.postfixField;
+		this.postfixIsCompositeId = parsed.postfixIsCompositeId;
+		this.overwriteDupes = parsed.overwriteDupes;
+		this.enabled = enabled;
+		this.canonicalDates = parsed.canonicalDates;
+		this.skipOnReplicas = parsed.skipOnReplicas;
+		this.existingIdMode = parsed.existingIdMode;
+		this.tolerant = parsed.tolerant;
+		this.maxFailures = parsed.maxFailures;
+		this.insertOnlyTokens = parsed.insertOnlyTokens;
+		this.shardKeyCacheSize = parsed.shardKeyCacheSize;
+		this.shardKeyBitsDefaults = parsed.shardKeyBitsDefaults;
+		this.shardKeyBitsFile = parsed.shardKeyBitsFile;
+		this.extractionPlan = extractionPlan;
+		this.shardKeyBits = shardKeyBits;
+		this.shardKeyCache = shardKeyCache;
+	}
+
+
+	private CompositeIdConfig(SolrParams params) {
+		overwriteDupes = params.getBool("overwriteDupes", true);
+
+		compositeIdField = params.get("compositeIdField", "compositeIdField");
+
+		List<String> fields = new ArrayList<String>();
+		List<List<String>> levels = new ArrayList<List<String>>();
+		for (String level : StrUtils.splitSmart(
+				params.get("prefixFields", "prefixFields"), SHARD_KEY_LEVEL_SEPARATOR)) {
+			List<String> levelFields = StrUtils.splitSmart(level, ',');
+			Collections.sort(levelFields);
+			levels.add(Collections.unmodifiableList(levelFields));
+			fields.addAll(levelFields);
+		}
+		prefixFields = Collections.unmodifiableList(fields);
+		prefixFieldLevels = Collections.unmodifiableList(levels);
+
+		postfixField = params.get("postfixField", "postfixField");
+
+		postfixIsCompositeId = postfixField.equals(compositeIdField);
+
+		String mode = params.get("existingIdMode", ExistingIdMode.REBUILD.name());
+		try {
+			existingIdMode = ExistingIdMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+		}
+		catch (IllegalArgumentException e) {
+			throw new SolrException(ErrorCode.SERVER_ERROR,
+				"existingIdMode must be one of rebuild, fix or reject: " + mode);
+		}
+
+		enabled = params.getBool("enabled", true);
+
+		tolerant = params.getBool("tolerant", false);
+		maxFailures = params.getInt("maxFailures", DEFAULT_MAX_FAILURES);
+		
+		Set<String> tokens = new HashSet<String>();
+		String insertOnly = params.get("insertOnlyTokens");
+		if (insertOnly != null) {
+			for (String token : StrUtils.splitSmart(insertOnly, ',')) {
+				if (token.trim().length() > 0) {
+					tokens.add(token.trim());
+				}
+			}
+		}
+		insertOnlyTokens = Collections.unmodifiableSet(tokens);
+
+		skipOnReplicas = params.getBool("skipOnReplicas", true);
+
+		canonicalDates = params.getBool("canonicalDates", false);
+
+		shardKeyCacheSize = params.getInt("shardKeyCacheSize", DEFAULT_SHARD_KEY_CACHE_SIZE);
+
+		shardKeyBitsDefaults = params.get("shardKeyBits");
+		shardKeyBitsFile = params.get("shardKeyBitsFile");
+
+		extractionPlan = null;
+		shardKeyBits = ShardKeyBits.DISABLED;
+		shardKeyCache = null;
+	}
+
+
+	/**
+	 * Parses the configuration parameters. The result must be compiled
+	 * before documents can be processed with it.
+	 *
+	 * @param params the configuration parameters
+	 * @return the parsed snapshot
+	 */
+	static CompositeIdConfig parse(SolrParams params) {
+		return new CompositeIdConfig(params);
+	}
+
+
+	/**
+	 * Compiles the snapshot against schema fields that have already been
+	 * validated.
+	 *
+	 * @param schemaFields the prefix and postfix schema fields, keyed by name
+	 * @param shardKeyBits the bit counts written after the shard key
+	 * @param shardKeysTracked whether the shard key of every document is
+	 * 		tracked, by the hot shard keys or the shard key index
+	 * @return the compiled snapshot, with a new shard key cache if any
+	 * 		shard key is used
+	 */
+	CompositeIdConfig compile(Map<String, SchemaField> schemaFields, ShardKeyBits shardKeyBits,
+			boolean shardKeysTracked) {
+		CompositeIdExtractionPlan plan = CompositeIdExtractionPlan.compile(
+				prefixFieldLevels, postfixField, schemaFields, canonicalDates);
+		ShardKeyCache cache = shardKeyBits.isEnabled() || shardKeysTracked ? newCache(shardKeyBits) : null;
+		return new CompositeIdConfig(this, enabled, plan, shardKeyBits, cache);
+	}
+
+
+	/**
+	 * Returns a copy of this snapshot with the processor enabled or disabled
+	 *
+	 * @param enabled whether composite ids are built
+	 * @return the new snapshot, sharing the shard key cache
+	 */
+	CompositeIdConfig withEnabled(boolean enabled) {
+		return new CompositeIdConfig(this, enabled, extractionPlan, shardKeyBits, shardKeyCache);
+	}
+
+
+	/**
+	 * Describes the snapshot with the names of the configuration parameters
+	 *
+	 * @return the parameters and their values in effect
+	 */
+	NamedList<Object> toNamedList() {
+		NamedList<Object> list = new SimpleOrderedMap<Object>();
+		list.add("compositeIdField", compositeIdField);
+		list.add("prefixFields", prefixFieldLevels);
+		list.add("postfixField", postfixField);
+		list.add("overwriteDupes", overwriteDupes);
+		list.add("enabled", enabled);
+		list.add("canonicalDates", canonicalDates);
+		list.add("skipOnReplicas", skipOnReplicas);
+		list.add("existingIdMode", existingIdMode.name().toLowerCase(Locale.ROOT));
+		list.add("tolerant", tolerant);
+		list.add("maxFailures", maxFailures);
+		//The tokens themselves are secrets
+		list.add("insertOnlyTokens", insertOnlyTokens.size());
+		list.add("shardKeyCacheSize", shardKeyCacheSize);
+		list.add("shardKeyBits", shardKeyBitsDefaults);
+		list.add("shardKeyBitsFile", shardKeyBitsFile);
+		list.add("shardKeyBitsOverrides", shardKeyBits.getOverrides().size());
+		return list;
+	}
+
+
+	private ShardKeyCache newCache(ShardKeyBits shardKeyBits) {
+		return shardKeyCacheSize > 0 ? new ShardKeyCache(shardKeyCacheSize, shardKeyBits) : null;
+	}
+}
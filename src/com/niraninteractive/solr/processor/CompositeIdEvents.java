@@ -0,0 +1,89 @@
+package com.niraninteractive.solr.processor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Diagnostic events of composite id generation, written as single
+ * <code>key=value</code> lines to the
+ * <code>com.niraninteractive.solr.processor.CompositeIdEvents</code> logger
+ * at <code>DEBUG</code> level, so that they can be routed to a file of their
+ * own and lined up with GC logs or other recordings by timestamp and thread.
+ * <p>
+ * Processors check {@link #isEnabled()} once per request; while the logger is
+ * above <code>DEBUG</code> no event is built and no timing is taken for them.
+ * Every event carries the number of fields making up the id, the length of
+ * the shard key and its share of the route hash.
+ *
+ * @author afajem
+ */
+final class CompositeIdEvents {
+
+	private static final Logger log = LoggerFactory.getLogger(CompositeIdEvents.class);
+
+
+	private CompositeIdEvents() {
+	}
+
+
+	/**
+	 * Returns whether events are written
+	 *
+	 * @return <code>true</code> if the event logger is at <code>DEBUG</code> level
+	 */
+	static boolean isEnabled() {
+		return log.isDebugEnabled();
+	}
+
+
+	/**
+	 * A document took longer than the slow document threshold in this processor
+	 *
+	 * @param id the composite id, or <code>null</code> if none was built
+	 * @param nanos the time spent in this processor
+	 * @param fieldCount the number of fields making up the id
+	 * @param keyLength the length of the shard key
+	 * @param shardKeyHash the share of the route hash taken from the first
+	 * 		level of the shard key
+	 */
+	static void slowDocument(String id, long nanos, int fieldCount, int keyLength, int shardKeyHash) {
+		log.debug("event=SlowDocument durationMicros={} fieldCount={} keyLength={} shardKeyHash={} id={}",
+			new Object[] { nanos / 1000, fieldCount, keyLength, hex(shardKeyHash), id });
+	}
+
+
+	/**
+	 * A document failed validation
+	 *
+	 * @param reason why the document was rejected
+	 * @param field the field at fault
+	 * @param fieldCount the number of fields making up the id
+	 * @param keyLength the length of the shard key read so far
+	 * @param shardKeyHash the hash of the first level of the shard key read so far
+	 */
+	static void validationFailure(String reason, String field, int fieldCount, int keyLength,
+			int shardKeyHash) {
+		log.debug("event=ValidationFailure reason={} field={} fieldCount={} keyLength={} shardKeyHash={}",
+			new Object[] { reason, field, fieldCount, keyLength, hex(shardKeyHash) });
+	}
+
+
+	/**
+	 * A shard key was not found in the shard key cache
+	 *
+	 * @param shardKey the canonical shard key
+	 * @param fieldCount the number of fields making up the id
+	 * @param keyLength the length of the shard key
+	 * @param shardKeyHash the share of the route hash taken from the first
+	 * 		level of the shard key
+	 */
+	static void cacheMiss(String shardKey, int fieldCount, int keyLength, int shardKeyHash) {
+		log.debug("event=ShardKeyCacheMiss fieldCount={} keyLength={} shardKeyHash={} shardKey={}",
+			new Object[] { fieldCount, keyLength, hex(shardKeyHash), shardKey });
+	}
+
+
+	private static String hex(int hash) {
+		return Integer.toHexString(hash);
+	}
+}
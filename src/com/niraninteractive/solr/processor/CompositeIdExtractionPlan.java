@@ -0,0 +1,194 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+
+/**
+ * Immutable description of how the parts of a composite id are read from a
+ * document. The plan is compiled once from the schema when the factory is
+ * informed of its core, and holds one slot per prefix field, in shard key
+ * order, plus one slot for the postfix field. The prefix slots are grouped
+ * into one or two shard key levels. Each slot carries the
+ * {@link FieldValueFormatter} matching the type of its field.
+ *
+ * @author afajem
+ */
+final class CompositeIdExtractionPlan {
+
+	/** A single field to be read from the document and the formatter for its values */
+	static final class Slot {
+		/** The name of the document field */
+		final String fieldName;
+		/** The formatter chosen from the field's schema type */
+		final FieldValueFormatter formatter;
+		/** Whether the field is a single-valued string field, indexed as written into ids */
+		final boolean verbatim;
+
+		Slot(String fieldName, FieldValueFormatter formatter, boolean verbatim) {
+			this.fieldName = fieldName;
+			this.formatter = formatter;
+			this.verbatim = verbatim;
+		}
+
+		/**
+		 * Appends the value of this slot's field to the buffer. In an atomic
+		 * update, only a value given by a <code>set</code> operation is used.
+		 *
+		 * @param document the document to read the value from
+		 * @param buffer the buffer to append to
+		 * @return <code>false</code> if the value is null or consists only of
+		 * 		whitespace, or if an atomic update does not set the field
+		 */
+		boolean append(SolrInputDocument document, StringBuilder buffer) {
+			Object value = document.getFieldValue(fieldName);
+			if (value instanceof Map) {
+				value = ((Map<?, ?>) value).get(ATOMIC_SET);
+			}
+			if (value == null) {
+				return false;
+			}
+
+			final int start = buffer.length();
+			formatter.append(value, buffer);
+
+			//Same notion of blank as String.trim()
+			for (int i = start; i < buffer.length(); i++) {
+				if (buffer.charAt(i) > ' ') {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** The atomic update operation replacing a field value */
+	static final String ATOMIC_SET = "set";
+
+	private final Slot[] prefixSlots;
+	private final int[] levelEnds;
+	private final Slot postfixSlot;
+
+
+	private CompositeIdExtractionPlan(Slot[] prefixSlots, int[] levelEnds, Slot postfixSlot) {
+		this.prefixSlots = prefixSlots;
+		this.levelEnds = levelEnds;
+		this.postfixSlot = postfixSlot;
+	}
+
+
+	/**
+	 * Compiles the plan for the configured fields.
+	 *
+	 * @param prefixFieldLevels the prefix field names of each shard key level,
+	 * 		in shard key order
+	 * @param postfixField the postfix field name
+	 * @param schemaFields the schema fields, keyed by name. Fields that are
+	 * 		absent get the {@link FieldValueFormatter#GENERIC} formatter.
+	 * @param canonicalDates whether date values are written in Solr's canonical form
+	 * @return the compiled plan
+	 */
+	static CompositeIdExtractionPlan compile(List<List<String>> prefixFieldLevels,
+			String postfixField, Map<String, SchemaField> schemaFields, boolean canonicalDates) {
+		int slotCount = 0;
+		for (List<String> level : prefixFieldLevels) {
+			slotCount += level.size();
+		}
+
+		Slot[] prefixSlots = new Slot[slotCount];
+		int[] levelEnds = new int[prefixFieldLevels.size()];
+		int slot = 0;
+		for (int level = 0; level < levelEnds.length; level++) {
+			for (String prefixField : prefixFieldLevels.get(level)) {
+				prefixSlots[slot++] = slot(prefixField, schemaFields, canonicalDates);
+			}
+			levelEnds[level] = slot;
+		}
+		return new CompositeIdExtractionPlan(prefixSlots, levelEnds,
+				slot(postfixField, schemaFields, canonicalDates));
+	}
+
+
+	private static Slot slot(String fieldName, Map<String, SchemaField> schemaFields,
+			boolean canonicalDates) {
+		SchemaField schemaField = schemaFields.get(fieldName);
+		return new Slot(fieldName, schemaField == null
+				? FieldValueFormatter.GENERIC
+				: FieldValueFormatter.forType(schemaField.getType(), canonicalDates),
+				schemaField != null && schemaField.getType() instanceof StrField 
+						&& !schemaField.multiValued());
+	}
+
+
+	/**
+	 * Returns whether every prefix field is a single-valued string field, so
+	 * that a query term for it is the value written into ids. Other types
+	 * are indexed in a form of their own, and a multi-valued field matches
+	 * values the id was not built from.
+	 *
+	 * @return <code>true</code> if shard keys can be built from query terms
+	 */
+	boolean isRoutable() {
+		for (Slot slot : prefixSlots) {
+			if (!slot.verbatim) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the number of prefix slots
+	 *
+	 * @return the prefix slot count
+	 */
+	int prefixCount() {
+		return prefixSlots.length;
+	}
+
+
+	/**
+	 * Returns the number of shard key levels
+	 *
+	 * @return the level count
+	 */
+	int levelCount() {
+		return levelEnds.length;
+	}
+
+
+	/**
+	 * Returns the position after the last prefix slot of a level
+	 *
+	 * @param level the shard key level
+	 * @return the end of the level's slots, exclusive
+	 */
+	int levelEnd(int level) {
+		return levelEnds[level];
+	}
+
+
+	/**
+	 * Returns the prefix slot at the given position
+	 *
+	 * @param index the position of the slot in shard key order
+	 * @return the prefix slot
+	 */
+	Slot prefixSlot(int index) {
+		return prefixSlots[index];
+	}
+
+
+	/**
+	 * Returns the postfix slot
+	 *
+	 * @return the postfix slot
+	 */
+	Slot postfixSlot() {
+		return postfixSlot;
+	}
+}
@@ -0,0 +1,157 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.handler.RealTimeGetHandler;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * Real-time get handler that accepts raw document ids, the values of the
+ * <code>postfixField</code>, in place of composite ids. Each raw id in the
+ * <code>id</code> and <code>ids</code> parameters is rewritten to its
+ * composite id before the request is handled, so a distributed get sends
+ * each shard one request for the ids it holds instead of searching every
+ * shard for them.
+ * <p>
+ * The shard key of the raw ids is built from <code>route.&lt;field&gt;</code>
+ * parameters giving every prefix field, as for
+ * {@link CompositeIdRoutingSearchHandler} and only when every prefix field is
+ * a single-valued string field, in which case it applies to all of them.
+ * Otherwise each raw id is looked up in the shard key index of the
+ * {@link CompositeIdUpdateProcessorFactory}, if it is enabled. Ids already
+ * holding a <code>!</code>, and raw ids whose shard key cannot be found, are
+ * passed on unchanged.
+ * <p>
+ * The update chain is named with the <code>updateChain</code> init argument;
+ * without it the core's default chain is used.
+ *
+ * <pre>
+ *	&lt;requestHandler name="/get" class="com.niraninteractive.solr.processor.CompositeIdRealTimeGetHandler"&gt;
+ *		&lt;str name="updateChain"&gt;myDedupe&lt;/str&gt;
+ *	&lt;/requestHandler&gt;
+ * </pre>
+ *
+ * @author afajem
+ */
+public class CompositeIdRealTimeGetHandler extends RealTimeGetHandler {
+
+	private static final String ID_PARAM = "id";
+	private static final String IDS_PARAM = "ids";
+
+	/** The update chain holding the composite id processor, or <code>null</code> for the default */
+	private String updateChain;
+
+	private final StripedCounter idsRewritten = new StripedCounter();
+	private final StripedCounter idsUnresolved = new StripedCounter();
+
+
+	@Override
+	public void init(@SuppressWarnings("rawtypes") NamedList args) {
+		super.init(args);
+		Object chain = args == null ? null : args.get("updateChain");
+		updateChain = chain == null ? null : chain.toString();
+	}
+
+
+	@Override
+	public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+		rewriteIds(req);
+		super.handleRequestBody(req, rsp);
+	}
+
+
+	/**
+	 * Replaces the raw ids of the request by composite ids, passing all ids
+	 * in the <code>id</code> parameter
+	 */
+	private void rewriteIds(SolrQueryRequest req) {
+		SolrParams params = req.getParams();
+		String[] ids = params.getParams(ID_PARAM);
+		String[] idLists = params.getParams(IDS_PARAM);
+		if (ids == null && idLists == null) {
+			return;
+		}
+
+		CompositeIdUpdateProcessorFactory factory = CompositeIdAdminHandler.findFactory(req, updateChain);
+		CompositeIdConfig config = factory.getConfig();
+		if (!config.enabled) {
+			return;
+		}
+		String routeKey = CompositeIdRoutingSearchHandler.routeKey(factory, config, params, null);
+
+		List<String> compositeIds = new ArrayList<String>();
+		boolean rewritten = false;
+		if (ids != null) {
+			for (String id : ids) {
+				String compositeId = compositeId(factory, routeKey, id);
+				rewritten |= compositeId != id;
+				compositeIds.add(compositeId);
+			}
+		}
+		if (idLists != null) {
+			for (String idList : idLists) {
+				for (String id : StrUtils.splitSmart(idList, ",", true)) {
+					String compositeId = compositeId(factory, routeKey, id);
+					rewritten |= compositeId != id;
+					compositeIds.add(compositeId);
+				}
+			}
+		}
+
+		if (rewritten) {
+			ModifiableSolrParams rewrittenParams = new ModifiableSolrParams(params);
+			rewrittenParams.remove(IDS_PARAM);
+			rewrittenParams.set(ID_PARAM, compositeIds.toArray(new String[compositeIds.size()]));
+			req.setParams(rewrittenParams);
+		}
+	}
+
+
+	/**
+	 * Returns the composite id of a raw id, or the id itself if it is already
+	 * a composite id or its shard key is unknown
+	 */
+	private String compositeId(CompositeIdUpdateProcessorFactory factory, String routeKey, String id) {
+		if (id.indexOf(CompositeIdUpdateProcessorFactory.SHARD_KEY_SEPARATOR) >= 0) {
+			return id;
+		}
+		String shardKey = routeKey != null ? routeKey : factory.indexedRouteKey(id);
+		if (shardKey == null) {
+			idsUnresolved.increment();
+			return id;
+		}
+		idsRewritten.increment();
+		return shardKey + CompositeIdUpdateProcessorFactory.SHARD_KEY_SEPARATOR + id;
+	}
+
+
+	@Override
+	public NamedList<Object> getStatistics() {
+		NamedList<Object> stats = super.getStatistics();
+		if (stats == null) {
+			stats = new SimpleOrderedMap<Object>();
+		}
+		stats.add("idsRewritten", idsRewritten.get());
+		stats.add("idsUnresolved", idsUnresolved.get());
+		return stats;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Real-time get handler resolving raw document ids to composite ids";
+	}
+
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+}
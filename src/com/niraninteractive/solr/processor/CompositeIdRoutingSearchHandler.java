@@ -0,0 +1,227 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.SearchHandler;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * Search handler that sends a query only to the shards holding the documents
+ * it can match, when the query pins down every prefix field of the composite
+ * id. The shard key is built by the {@link CompositeIdUpdateProcessorFactory}
+ * of an update chain, with the same configuration and bit counts as the ids
+ * of indexed documents, and passed on in the <code>shard.keys</code>
+ * parameter before the request is distributed. Solr decides which shards to
+ * query before any search component runs, hence a handler rather than a
+ * component.
+ * <p>
+ * The value of each prefix field is taken from the <code>route.&lt;field&gt;</code>
+ * request parameter or, failing that, from a filter query of one of the forms
+ * <code>field:value</code>, <code>field:"value"</code> or
+ * <code>{!term f=field}value</code>. Filter queries restrict every result, so
+ * a document they allow always lives under the shard key they spell out.
+ * Only single-valued string fields index their values as they are written
+ * into ids, so queries are routed only when every prefix field is one; with
+ * any other prefix field type every query goes to all shards. Queries that
+ * already name their shards or shard keys, that are not distributed, or that
+ * leave a prefix field open, are left alone.
+ * <p>
+ * The update chain is named with the <code>updateChain</code> init argument;
+ * without it the core's default chain is used.
+ *
+ * <pre>
+ *	&lt;requestHandler name="/select" class="com.niraninteractive.solr.processor.CompositeIdRoutingSearchHandler"&gt;
+ *		&lt;str name="updateChain"&gt;myDedupe&lt;/str&gt;
+ *	&lt;/requestHandler&gt;
+ * </pre>
+ *
+ * @author afajem
+ */
+public class CompositeIdRoutingSearchHandler extends SearchHandler {
+
+	/** The prefix of the request parameters carrying prefix field values */
+	static final String ROUTE_PARAM_PREFIX = "route.";
+
+	/** The characters with a meaning of their own in an unquoted query term */
+	private static final String SPECIAL_CHARS = "&|!(){}[]^\"~*?:/ \t\r\n";
+	/** The characters with a meaning of their own at the start of an unquoted query term */
+	private static final String SPECIAL_START_CHARS = "+-";
+
+	/** The update chain holding the composite id processor, or <code>null</code> for the default */
+	private String updateChain;
+
+	private final StripedCounter queriesRouted = new StripedCounter();
+	private final StripedCounter queriesNotRouted = new StripedCounter();
+
+
+	@Override
+	public void init(@SuppressWarnings("rawtypes") NamedList args) {
+		super.init(args);
+		Object chain = args == null ? null : args.get("updateChain");
+		updateChain = chain == null ? null : chain.toString();
+	}
+
+
+	@Override
+	public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+		route(req);
+		super.handleRequestBody(req, rsp);
+	}
+
+
+	/**
+	 * Adds the shard key of the query to its parameters, if it has one
+	 */
+	private void route(SolrQueryRequest req) {
+		SolrParams params = req.getParams();
+		if (!params.getBool(CommonParams.DISTRIB, true) || params.get(ShardParams.SHARDS) != null
+				|| params.get(ShardParams.SHARD_KEYS) != null) {
+			return;
+		}
+
+		CompositeIdUpdateProcessorFactory factory = CompositeIdAdminHandler.findFactory(req, updateChain);
+		CompositeIdConfig config = factory.getConfig();
+		if (!config.enabled) {
+			queriesNotRouted.increment();
+			return;
+		}
+
+		String routeKey = routeKey(factory, config, params, params.getParams(CommonParams.FQ));
+		if (routeKey == null) {
+			queriesNotRouted.increment();
+			return;
+		}
+		ModifiableSolrParams routed = new ModifiableSolrParams(params);
+		routed.set(ShardParams.SHARD_KEYS, routeKey + CompositeIdUpdateProcessorFactory.SHARD_KEY_SEPARATOR);
+		req.setParams(routed);
+		queriesRouted.increment();
+	}
+
+
+	/**
+	 * Builds the shard key that request parameters and filter queries give
+	 * values for
+	 *
+	 * @param factory the factory building the shard key
+	 * @param config the configuration of the factory
+	 * @param params the request parameters, read for <code>route.&lt;field&gt;</code>
+	 * @param filterQueries the filter queries, or <code>null</code>
+	 * @return the shard key as written into ids, or <code>null</code> if a
+	 * 		prefix field has no value
+	 */
+	static String routeKey(CompositeIdUpdateProcessorFactory factory, CompositeIdConfig config,
+			SolrParams params, String[] filterQueries) {
+		Map<String, String> prefixValues = new HashMap<String, String>();
+		for (String field : config.prefixFields) {
+			String value = params.get(ROUTE_PARAM_PREFIX + field);
+			if (value == null) {
+				value = filterValue(filterQueries, field);
+			}
+			if (value == null) {
+				return null;
+			}
+			prefixValues.put(field, value);
+		}
+		return factory.routeKey(prefixValues);
+	}
+
+
+	/**
+	 * Returns the single value that filter queries require a field to hold
+	 *
+	 * @param filterQueries the filter queries, or <code>null</code>
+	 * @param field the field
+	 * @return the value, or <code>null</code> if no filter query names one
+	 * 		or they name several
+	 */
+	static String filterValue(String[] filterQueries, String field) {
+		if (filterQueries == null) {
+			return null;
+		}
+		String found = null;
+		String termPrefix = "{!term f=" + field + "}";
+		String fieldPrefix = field + ":";
+		for (String filterQuery : filterQueries) {
+			String fq = filterQuery.trim();
+			String value = null;
+			if (fq.startsWith(termPrefix)) {
+				value = fq.substring(termPrefix.length());
+			}
+			else if (fq.startsWith(fieldPrefix)) {
+				value = unescapeTerm(fq.substring(fieldPrefix.length()));
+			}
+			if (value != null) {
+				if (found != null && !found.equals(value)) {
+					return null;
+				}
+				found = value;
+			}
+		}
+		return found;
+	}
+
+
+	/**
+	 * Reads a single term as the standard query parser would
+	 *
+	 * @param term a quoted or unquoted term
+	 * @return the term without quotes or escapes, or <code>null</code> if it
+	 * 		is anything more than a single term
+	 */
+	private static String unescapeTerm(String term) {
+		boolean quoted = term.length() >= 2 && term.charAt(0) == '"'
+				&& term.charAt(term.length() - 1) == '"';
+		int start = quoted ? 1 : 0;
+		int end = quoted ? term.length() - 1 : term.length();
+		StringBuilder value = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char ch = term.charAt(i);
+			if (ch == '\\') {
+				if (++i == end) {
+					return null;
+				}
+				value.append(term.charAt(i));
+			}
+			else if (quoted ? ch == '"' : SPECIAL_CHARS.indexOf(ch) >= 0 
+					|| i == start && SPECIAL_START_CHARS.indexOf(ch) >= 0) {
+				return null;
+			}
+			else {
+				value.append(ch);
+			}
+		}
+		return value.length() == 0 ? null : value.toString();
+	}
+
+
+	@Override
+	public NamedList<Object> getStatistics() {
+		NamedList<Object> stats = super.getStatistics();
+		if (stats == null) {
+			stats = new SimpleOrderedMap<Object>();
+		}
+		stats.add("queriesRouted", queriesRouted.get());
+		stats.add("queriesNotRouted", queriesNotRouted.get());
+		return stats;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Search handler routing queries to the shards of their composite id shard key";
+	}
+
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+}
@@ -1,26 +1,53 @@
 package com.niraninteractive.solr.processor;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
-import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.CoreDescriptor;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.UpdateLog;
+import org.apache.solr.update.processor.DistributedUpdateProcessor;
+import org.apache.solr.update.processor.DistributedUpdateProcessor.DistribPhase;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.RefCounted;
 import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This class should be used to generate a composite ID during the document
@@ -65,36 +92,264 @@ import org.apache.solr.util.plugin.SolrCoreAware;
  *  <li><code>compositeIdField</code> - Name of the field that will be used to store 
  *  the resulting composite ID</li>
  *  <li><code>prefixFields</code> - A comma delimited list of document fields that will be 
- *  concatenated together to form the shard key.</li>
+ *  concatenated together to form the shard key. Two groups of fields separated by a semicolon 
+ *  form a two level shard key, written as <code>&lt;first&gt;!&lt;second&gt;!&lt;document_id&gt;</code>.</li>
  *  <li><code>postfixField</code> - The field name of the unique document id that should be appended to the shard key 
  *  to form the composite id</li>
  *  <li><code>overwriteDupes</code> (optional) - A boolean indicating if duplicates should be 
  *  overwritten or skipped. Default value is <code>true</code>.</li>
  *  <li><code>enabled</code> (optional) - A boolean indicating if the update processor factory
  *  is enabled. Default value is <code>true</code>.</li>
+ *  <li><code>canonicalDates</code> (optional) - A boolean indicating if <code>Date</code> values of
+ *  date fields are written in Solr's canonical UTC form instead of with <code>Date.toString()</code>.
+ *  Changing it changes the ids of documents with a date prefix, which must then be re-indexed. 
+ *  Default value is <code>false</code>.</li>
+ *  <li><code>shardKeyCacheSize</code> (optional) - The maximum number of distinct shard keys 
+ *  whose hash is cached. The cache is only allocated when <code>shardKeyBits</code>, 
+ *  <code>hotShardKeyTopK</code> or <code>shardKeyIndex</code> is in use, and has no effect 
+ *  otherwise. A value of <code>0</code> disables the cache. Default value is 
+ *  <code>4096</code>.</li>
+ *  <li><code>shardKeyBits</code> (optional) - The number of route hash bits taken from the shard 
+ *  key, written as <code>&lt;shard_key&gt;/&lt;bits&gt;!&lt;document_id&gt;</code>. Fewer bits spread
+ *  the documents of a shard key over more shards. For a two level shard key, the bit count 
+ *  applies to the first level; the Solr 4.3 router splits ids at their first <code>!</code>, so a
+ *  second level count is refused. By default no bit count is written.</li>
+ *  <li><code>shardKeyBitsFile</code> (optional) - A resource holding <code>shard_key=bits</code> 
+ *  lines that override <code>shardKeyBits</code> for individual (first level) shard keys.</li>
+ *  <li><code>prefixValuePoolSize</code> (optional) - The maximum number of distinct prefix field 
+ *  values kept in a pool of canonical strings, so that documents with equal prefix values share 
+ *  one instance. A value of <code>0</code> disables the pool. Default value is <code>0</code>.</li>
+ *  <li><code>hotShardKeyTopK</code> (optional) - The number of most frequent shard keys tracked 
+ *  by a heavy hitter sketch and reported in the statistics. A value of <code>0</code> disables 
+ *  the sketch. Default value is <code>0</code>.</li>
+ *  <li><code>hotShardKeyWindowSeconds</code> (optional) - The length of the window over which 
+ *  shard key rates are measured. Default value is <code>60</code>.</li>
+ *  <li><code>skipOnReplicas</code> (optional) - A boolean indicating if updates forwarded by a 
+ *  shard leader to its replicas (<code>update.distrib=fromleader</code>) keep the composite id 
+ *  they carry instead of having it built again. Default value is <code>true</code>.</li>
+ *  <li><code>tolerant</code> (optional) - A boolean indicating if documents lacking a value the 
+ *  composite id is built from are left out, and reported in the response header, instead of 
+ *  failing the whole request. Default value is <code>false</code>.</li>
+ *  <li><code>maxFailures</code> (optional) - The number of documents a tolerant request may leave 
+ *  out before it fails. A negative value means no limit. Default value is <code>100</code>.</li>
+ *  <li><code>insertOnlyTokens</code> (optional) - A comma delimited list of tokens with which a request 
+ *  may set <code>compositeId.insertOnly=true</code> (passing the token in 
+ *  <code>compositeId.insertOnlyToken</code>) to add its documents without overwriting.</li>
+ *  <li><code>latencySampleInterval</code> (optional) - The time spent in this processor and in 
+ *  the rest of the chain is recorded for one document in this many. A value of <code>0</code> 
+ *  disables the latency histograms. Default value is <code>16</code>.</li>
+ *  <li><code>slowDocumentThresholdMicros</code> (optional) - The time in this processor above 
+ *  which a slow document event is written to the {@link CompositeIdEvents} logger. A value of 
+ *  <code>0</code> disables slow document events. Default value is <code>0</code>.</li>
+ *  <li><code>existingIdMode</code> (optional) - How a composite id already carried by a document
+ *  is treated: <code>rebuild</code> builds it again, <code>fix</code> keeps it untouched if it matches
+ *  the document fields and builds it again otherwise, <code>reject</code> keeps it if it matches and
+ *  fails the update otherwise. Default value is <code>rebuild</code>.</li>
+ *  <li><code>shardKeyIndex</code> (optional) - A boolean indicating if the shard key of each document
+ *  id is recorded in a memory-mapped index, so that deletes and atomic updates by raw document id 
+ *  find the composite id. Default value is <code>false</code>.</li>
+ *  <li><code>shardKeyIndexDir</code> (optional) - The directory of the shard key index, relative to 
+ *  the core's data directory. Default value is <code>shard-key-index</code>.</li>
+ *  <li><code>shardKeyIndexCapacity</code> (optional) - The number of slots of a new shard key index; 
+ *  the index grows by itself. Default value is <code>1048576</code>.</li>
+ *  <li><code>newIdFilter</code> (optional) - A boolean indicating if a Bloom filter of the indexed 
+ *  composite ids is kept, so that a document whose id was never indexed is added without overwriting.
+ *  Only for cores outside SolrCloud, and only safe if every add to the core goes through this 
+ *  processor: a document indexed any other way is duplicated by the next add of its id. Updates
+ *  replayed from the transaction log bypass it, so the filter is first built at the first commit
+ *  after replay. Default value is <code>false</code>.</li>
+ *  <li><code>newIdFilterFalsePositiveRate</code> (optional) - The rate of new ids the filter takes for
+ *  indexed ones, once full. Default value is <code>0.01</code>.</li>
+ *  <li><code>newIdFilterMinIds</code> (optional) - The smallest number of ids the filter is sized for.
+ *  Default value is <code>1000000</code>.</li>
+ * <p>
+ * Atomic updates take prefix values from <code>set</code> operations. An atomic update that does
+ * not set every prefix field keeps the composite id of the document it updates, either the one it 
+ * carries or the one stored with its <code>postfixField</code> value.
  * 
  * @author afajem
  */
 public class CompositeIdUpdateProcessorFactory extends
-		UpdateRequestProcessorFactory implements SolrCoreAware {
+		UpdateRequestProcessorFactory implements SolrCoreAware, SolrInfoMBean {
+	
+	private static final Logger log = LoggerFactory.getLogger(CompositeIdUpdateProcessorFactory.class);
 	
 	/** The shard key separator. The exclamation point character is used internally by Solr */
-	private final static String SHARD_KEY_SEPARATOR = "!";
-
-	/** The postfix field configuration parameter passed into the class */
-	private String postfixField;
-	/** The prefix fields configuration parameter passed into the class */
-	private List<String> prefixFields;
-	/** The composite id field name that is passed in to the class as a configuration parameter */
-	private String compositeIdField;
-	/** The flag specify if duplicates will be overwritten, passed as a configuration parameter */
-	private boolean overwriteDupes;
-	/** The flag indicating if the class is enabled or not */
-	private boolean enabled;
+	final static char SHARD_KEY_SEPARATOR = '!';
+	/** The separator between the shard key and the number of route hash bits taken from it */
+	final static char SHARD_KEY_BITS_SEPARATOR = '/';
+	/** The maximum number of shard key levels */
+	private final static int MAX_SHARD_KEY_LEVELS = 2;
+	
+	/** Default length of the window over which shard key rates are measured */
+	private final static int DEFAULT_HOT_SHARD_KEY_WINDOW_SECONDS = 60;
+	/** Default number of documents per latency sample */
+	private final static int DEFAULT_LATENCY_SAMPLE_INTERVAL = 16;
+	/** Default directory of the shard key index, relative to the data directory */
+	private final static String DEFAULT_SHARD_KEY_INDEX_DIR = "shard-key-index";
+	/** Default number of slots of a new shard key index */
+	private final static long DEFAULT_SHARD_KEY_INDEX_CAPACITY = 1L << 20;
+	/** Default rate of new ids the new id filter takes for indexed ones */
+	private final static double DEFAULT_NEW_ID_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	/** The request parameter asking for documents to be added without overwriting */
+	final static String INSERT_ONLY_PARAM = "compositeId.insertOnly";
+	/** The request parameter holding the token that allows insert-only requests */
+	final static String INSERT_ONLY_TOKEN_PARAM = "compositeId.insertOnlyToken";
+	/**
+	 * The configuration parameters that may be changed without reloading the
+	 * core. The insert-only token allowlist and the shard key bits file are
+	 * left out so that they can only be changed in the core's configuration.
+	 */
+	final static Set<String> RECONFIGURABLE_PARAMS = Collections.unmodifiableSet(new HashSet<String>(
+		Arrays.asList("compositeIdField", "prefixFields", "postfixField", "overwriteDupes", "enabled",
+			"canonicalDates", "skipOnReplicas", "existingIdMode", "tolerant", "maxFailures",
+			"shardKeyCacheSize", "shardKeyBits")));
+	/** The number of duplicate ids of an insert-only request listed in its response */
+	private final static int MAX_REPORTED_DUPLICATES = 10;
+	/** Default smallest number of ids the new id filter is sized for */
+	private final static long DEFAULT_NEW_ID_FILTER_MIN_IDS = 1000000L;
+	
+	/** Why a document was rejected; validation returns one of these instead of throwing */
+	enum Rejection {
+		/** A prefix field has no value */
+		MISSING_PREFIX_VALUE("missingPrefixValue", ErrorCode.SERVER_ERROR,
+			"A prefix field must not be empty or null as it's used as a part of a composite id. " +
+			"Detected the following prefix field is empty or null: "),
+		/** The postfix field has no value */
+		MISSING_POSTFIX_VALUE("missingPostfixValue", ErrorCode.SERVER_ERROR,
+			"Both prefixFields and postfixField values must be non-null/empty. " +
+			"Detected the following postfix field is empty or null: "),
+		/** The composite id carried by the document does not match its fields */
+		MISMATCHED_EXISTING_ID("mismatchedExistingId", ErrorCode.BAD_REQUEST,
+			"The composite id does not match the prefix fields of the document, in field: ");
+		
+		/** The reason as reported in events and statistics */
+		final String reason;
+		/** The error code of the request failure */
+		final ErrorCode errorCode;
+		/** The failure message, completed with the field at fault */
+		final String message;
+		
+		private Rejection(String reason, ErrorCode errorCode, String message) {
+			this.reason = reason;
+			this.errorCode = errorCode;
+			this.message = message;
+		}
+	}
 	
-	/** Use to store schema field data */
-	private Map<String, SchemaField> schemaFields = new HashMap<String, SchemaField>();
+	/**
+	 * The failure of a request with a rejected document. Raised once per
+	 * request, and without a stack trace since it always comes from the same
+	 * place.
+	 */
+	static final class ValidationException extends SolrException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ValidationException(Rejection rejection, String field) {
+			super(rejection.errorCode, rejection.message + field);
+		}
+		
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+	
+	/** Initial capacity of the per-thread buffer used to assemble composite ids */
+	private final static int ID_BUFFER_INITIAL_CAPACITY = 128;
+	/** Buffers that grow beyond this capacity are dropped instead of being kept by the thread */
+	private final static int ID_BUFFER_MAX_RETAINED_CAPACITY = 8192;
+	
+	/** Reusable per-thread buffer in which the composite id is assembled */
+	private final static ThreadLocal<StringBuilder> ID_BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(ID_BUFFER_INITIAL_CAPACITY);
+		}
+	};
 
+	/** The configuration parameters the factory was initialized with */
+	private SolrParams initParams;
+	/** The configuration in effect, replaced as a whole on every change */
+	private volatile CompositeIdConfig config;
+	/** The core the factory was informed of, used to validate new configurations */
+	private SolrCore core;
+	
+	/** The number of documents whose composite id was built or kept */
+	private final StripedCounter docsProcessed = new StripedCounter();
+	/** The number of documents passed on untouched, while disabled or on a replica */
+	private final StripedCounter docsSkipped = new StripedCounter();
+	/** The number of documents that failed validation */
+	private final StripedCounter docsRejected = new StripedCounter();
+	/** The number of documents that failed validation, by {@link Rejection} ordinal */
+	private final StripedCounter[] docsRejectedByReason = newCounters(Rejection.values().length);
+	/** Record the latency of one document in this many, 0 if disabled */
+	private int latencySampleInterval;
+	/** The time in this processor above which a slow document event is written, 0 if disabled */
+	private long slowDocumentThresholdMicros;
+	/** The time spent in this processor by the sampled documents */
+	private final LatencyHistogram processorTime = new LatencyHistogram();
+	/** The time spent in the rest of the chain by the sampled documents */
+	private final LatencyHistogram nextProcessorTime = new LatencyHistogram();
+	/** The number of invalid documents left out of tolerant requests */
+	private final StripedCounter docsTolerated = new StripedCounter();
+	/** The number of tolerant requests that failed after too many invalid documents */
+	private final StripedCounter tolerantRequestsAborted = new StripedCounter();
+	/** The number of atomic updates whose shard key was taken from the document they update */
+	private final StripedCounter atomicUpdatesResolved = new StripedCounter();
+	/** The number of documents whose existing composite id was kept */
+	private final StripedCounter existingIdsKept = new StripedCounter();
+	/** The number of documents whose existing composite id was built again */
+	private final StripedCounter existingIdsFixed = new StripedCounter();
+	/** The number of updates forwarded by a shard leader that were passed on untouched */
+	private final StripedCounter replicaUpdatesSkipped = new StripedCounter();
+	/** The pool of canonical prefix values, or <code>null</code> if disabled */
+	private StringInternPool prefixValuePool;
+	/** The sketch of the most frequent shard keys, or <code>null</code> if disabled */
+	private HeavyHitterSketch hotShardKeys;
+	/** Whether the shard key of each document id is recorded */
+	private boolean shardKeyIndexEnabled;
+	/** The directory of the shard key index, relative to the core's data directory */
+	private String shardKeyIndexDir;
+	/** The number of slots of a new shard key index */
+	private long shardKeyIndexCapacity;
+	/** The shard key of each document id, or <code>null</code> if disabled */
+	private volatile ShardKeyIndex shardKeyIndex;
+	/** The number of deletes by raw document id rewritten to the composite id */
+	private final StripedCounter rawIdDeletesRewritten = new StripedCounter();
+	/** Whether documents with ids never indexed before are added without overwriting */
+	private boolean newIdFilterEnabled;
+	/** The false positive rate the new id filter is sized for */
+	private double newIdFilterFalsePositiveRate;
+	/** The smallest number of ids the new id filter is sized for */
+	private long newIdFilterMinIds;
+	/** The filter of indexed ids, or <code>null</code> until it is built */
+	private volatile IdBloomFilter newIdFilter;
+	/** A filter being built to replace {@link #newIdFilter}, or <code>null</code> */
+	private volatile IdBloomFilter pendingNewIdFilter;
+	/** The ids of the documents on their way to the index, each with the claim of the add carrying it */
+	private final ConcurrentHashMap<BytesRef, CountDownLatch> newIdClaims = 
+		new ConcurrentHashMap<BytesRef, CountDownLatch>();
+	/** Whether a filter is being built, guarded by <code>this</code> */
+	private boolean newIdFilterBuilding;
+	/** The value of {@link #newIdFilterDeletes} when the current filter was built */
+	private volatile long newIdFilterDeletesAtBuild;
+	/** The number of deletes by id, whose ids stay in the filter until it is rebuilt */
+	private final StripedCounter newIdFilterDeletes = new StripedCounter();
+	/** The number of filters built */
+	private final StripedCounter newIdFilterBuilds = new StripedCounter();
+	/** The number of documents added without overwriting, their ids being new */
+	private final StripedCounter docsAddedWithoutOverwrite = new StripedCounter();
+	/** The number of insert-only requests */
+	private final StripedCounter insertOnlyRequests = new StripedCounter();
+	/** The number of insert-only requests refused for lack of an allowed token */
+	private final StripedCounter insertOnlyRequestsRefused = new StripedCounter();
+	/** The number of documents added by insert-only requests */
+	private final StripedCounter insertOnlyDocs = new StripedCounter();
+	/** The number of ids seen more than once within an insert-only request */
+	private final StripedCounter insertOnlyDuplicates = new StripedCounter();
+	
 	/**
 	 * Read in the configuration parameter (arguments) and initialize the class
 	 * 
@@ -106,20 +361,36 @@ public class CompositeIdUpdateProcessorFactory extends
 		if (args != null) {
 			SolrParams params = SolrParams.toSolrParams(args);
 
-			overwriteDupes = params.getBool("overwriteDupes", true);
-
-			compositeIdField = params.get("compositeIdField", "compositeIdField");
-
-			prefixFields = 
-				StrUtils.splitSmart(
-					params.get("prefixFields", "prefixFields"), ',');
-			if (prefixFields != null) {
-				Collections.sort(prefixFields);
+			initParams = params;
+			config = CompositeIdConfig.parse(params);
+			
+			latencySampleInterval = params.getInt("latencySampleInterval", DEFAULT_LATENCY_SAMPLE_INTERVAL);
+			slowDocumentThresholdMicros = params.getLong("slowDocumentThresholdMicros", 0);
+			
+			int prefixValuePoolSize = params.getInt("prefixValuePoolSize", 0);
+			prefixValuePool = prefixValuePoolSize > 0 ? new StringInternPool(prefixValuePoolSize) : null;
+			
+			shardKeyIndexEnabled = params.getBool("shardKeyIndex", false);
+			shardKeyIndexDir = params.get("shardKeyIndexDir", DEFAULT_SHARD_KEY_INDEX_DIR);
+			shardKeyIndexCapacity = params.getLong("shardKeyIndexCapacity", DEFAULT_SHARD_KEY_INDEX_CAPACITY);
+			
+			newIdFilterEnabled = params.getBool("newIdFilter", false);
+			newIdFilterFalsePositiveRate = params.getDouble(
+				"newIdFilterFalsePositiveRate", DEFAULT_NEW_ID_FILTER_FALSE_POSITIVE_RATE);
+			newIdFilterMinIds = params.getLong("newIdFilterMinIds", DEFAULT_NEW_ID_FILTER_MIN_IDS);
+			if (newIdFilterEnabled 
+					&& !(newIdFilterFalsePositiveRate > 0 && newIdFilterFalsePositiveRate < 1)) {
+				throw new SolrException(ErrorCode.SERVER_ERROR,
+					"newIdFilterFalsePositiveRate must be between 0 and 1: " + newIdFilterFalsePositiveRate);
 			}
 			
-			postfixField = params.get("postfixField", "postfixField");
-
-			enabled = params.getBool("enabled", true);
+			int hotShardKeyTopK = params.getInt("hotShardKeyTopK", 0);
+			int hotShardKeyWindowSeconds = params.getInt(
+				"hotShardKeyWindowSeconds", DEFAULT_HOT_SHARD_KEY_WINDOW_SECONDS);
+			hotShardKeys = null;
+			if (hotShardKeyTopK > 0) {
+				hotShardKeys = new HeavyHitterSketch(hotShardKeyTopK, hotShardKeyWindowSeconds * 1000L);
+			}
 		}
 	}
 	
@@ -144,11 +415,201 @@ public class CompositeIdUpdateProcessorFactory extends
 	 */
 	@Override
 	public void inform(SolrCore core) {
+		this.core = core;
+		config = informConfig(config, core, isShardKeyTracked());
+		
+		if (shardKeyIndexEnabled) {
+			File directory = new File(shardKeyIndexDir);
+			if (!directory.isAbsolute()) {
+				directory = new File(core.getDataDir(), shardKeyIndexDir);
+			}
+			try {
+				shardKeyIndex = ShardKeyIndex.open(directory, shardKeyIndexCapacity);
+			}
+			catch (IOException e) {
+				throw new SolrException(ErrorCode.SERVER_ERROR,
+					"Unable to open the shard key index in " + directory, e);
+			}
+			core.addCloseHook(new CloseHook() {
+				@Override
+				public void preClose(SolrCore core) {
+				}
+
+				@Override
+				public void postClose(SolrCore core) {
+					ShardKeyIndex index = shardKeyIndex;
+					shardKeyIndex = null;
+					if (index != null) {
+						index.close();
+					}
+				}
+			});
+		}
+		
+		if (newIdFilterEnabled) {
+			CoreDescriptor descriptor = core.getCoreDescriptor();
+			if (descriptor != null && descriptor.getCoreContainer() != null 
+					&& descriptor.getCoreContainer().isZooKeeperAware()) {
+				throw new SolrException(ErrorCode.SERVER_ERROR,
+					"newIdFilter requires every add to the core to pass through this processor, "
+						+ "which SolrCloud does not ensure");
+			}
+			//The first filter is built at the first commit after the transaction
+			//log has been replayed, since replayed adds do not pass through here.
+			//Until then every document overwrites.
+		}
+	}
+	
+	
+	/**
+	 * Returns whether the transaction log is being replayed or buffered.
+	 * Replayed updates skip the processors ahead of the distributed one, this
+	 * one included, so the new id filter never sees their ids.
+	 */
+	private boolean isReplaying() {
+		UpdateLog ulog = core.getUpdateHandler().getUpdateLog();
+		return ulog != null && ulog.getState() != UpdateLog.State.ACTIVE;
+	}
+	
+	
+	/**
+	 * Starts building a new id filter from the ids in the index, on a
+	 * background thread, unless one is being built already. Adds go to both
+	 * the current filter and the one being built until it replaces the current
+	 * one, so no id processed meanwhile is missed.
+	 */
+	private synchronized void buildNewIdFilter() {
+		if (newIdFilterBuilding) {
+			return;
+		}
+		newIdFilterBuilding = true;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					fillNewIdFilter();
+				}
+				catch (Exception e) {
+					pendingNewIdFilter = null;
+					log.error("Unable to build the new id filter; documents overwrite as usual", e);
+				}
+				finally {
+					synchronized (CompositeIdUpdateProcessorFactory.this) {
+						newIdFilterBuilding = false;
+					}
+				}
+			}
+		}, "CompositeId new id filter " + core.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	
+	private void fillNewIdFilter() throws IOException {
+		String field = config.compositeIdField;
+		long deletes = newIdFilterDeletes.get();
+		IdBloomFilter filter;
+		RefCounted<SolrIndexSearcher> searcherRef = core.getRealtimeSearcher();
+		try {
+			IndexReader reader = searcherRef.get().getIndexReader();
+			IdBloomFilter current = newIdFilter;
+			long expectedIds = Math.max(newIdFilterMinIds, 
+				2L * Math.max(reader.maxDoc(), current == null ? 0 : current.getIds()));
+			filter = new IdBloomFilter(expectedIds, newIdFilterFalsePositiveRate);
+			//Published before the ids are read, so that adds racing the read reach it
+			pendingNewIdFilter = filter;
+		}
+		finally {
+			searcherRef.decref();
+		}
+		
+		//A new searcher is opened after the filter is published, so that it holds
+		//every id added before then; the cached realtime searcher may be older
+		searcherRef = core.openNewSearcher(true, true);
+		try {
+			Terms terms = MultiFields.getTerms(searcherRef.get().getIndexReader(), field);
+			if (terms != null) {
+				TermsEnum termsEnum = terms.iterator(null);
+				BytesRef term;
+				while ((term = termsEnum.next()) != null) {
+					filter.add(term);
+				}
+			}
+		}
+		finally {
+			searcherRef.decref();
+		}
+		
+		newIdFilterDeletesAtBuild = deletes;
+		newIdFilter = filter;
+		pendingNewIdFilter = null;
+		newIdFilterBuilds.increment();
+		log.info("Built the new id filter of {} with {} ids in {} bits", 
+			new Object[] { core.getName(), filter.getIds(), filter.getBits() });
+	}
+
+
+	/**
+	 * Replaces the configuration while documents are being processed, without
+	 * reloading the core. The parameters given override those the factory
+	 * currently uses, and are validated against the schema the same way as at
+	 * startup; an invalid configuration leaves the current one in place.
+	 * Requests already running finish with the configuration they started
+	 * with. Only the parameters in {@link #RECONFIGURABLE_PARAMS} can be
+	 * changed this way; the others need a core reload.
+	 * 
+	 * @param params the configuration parameters to change
+	 * @throws SolrException if a parameter is not one of {@link #RECONFIGURABLE_PARAMS}
+	 */
+	public synchronized void reconfigure(SolrParams params) {
+		for (Iterator<String> names = params.getParameterNamesIterator(); names.hasNext(); ) {
+			String name = names.next();
+			if (!RECONFIGURABLE_PARAMS.contains(name)) {
+				throw new SolrException(ErrorCode.BAD_REQUEST,
+					"Parameter can only be changed by reloading the core: " + name);
+			}
+		}
+		SolrParams merged = SolrParams.wrapDefaults(params, initParams);
+		CompositeIdConfig parsed = CompositeIdConfig.parse(merged);
+		if (params.get("enabled") == null) {
+			//Keep the state set through setEnabled()
+			parsed = parsed.withEnabled(config.enabled);
+		}
+		config = informConfig(parsed, core, isShardKeyTracked());
+		initParams = merged;
+	}
+
+
+	/**
+	 * Validates a parsed configuration against the schema of a core and
+	 * compiles it.
+	 * 
+	 * @param parsed the parsed configuration
+	 * @param core the Solr Core
+	 * @param shardKeysTracked whether the shard key of every document is tracked
+	 * @return the compiled configuration
+	 */
+	private static CompositeIdConfig informConfig(CompositeIdConfig parsed, SolrCore core,
+			boolean shardKeysTracked) {
+		List<List<String>> prefixFieldLevels = parsed.prefixFieldLevels;
+		if (prefixFieldLevels.size() > MAX_SHARD_KEY_LEVELS) {
+			throw new SolrException(ErrorCode.SERVER_ERROR,
+				"At most " + MAX_SHARD_KEY_LEVELS + " shard key levels are supported: " 
+					+ prefixFieldLevels);
+		}
+		for (List<String> level : prefixFieldLevels) {
+			if (level.isEmpty()) {
+				throw new SolrException(ErrorCode.SERVER_ERROR,
+					"Each shard key level must have at least one prefix field: " 
+						+ prefixFieldLevels);
+			}
+		}
+		
+		Map<String, SchemaField> schemaFields = new HashMap<String, SchemaField>();
 		
 		//Validate that we have a valid prefix field(s) specified
 		boolean prefixFieldsIndexed = false;
-		if (prefixFields != null && !prefixFields.isEmpty()) {			
-			for (String prefixField : prefixFields) {
+		if (!parsed.prefixFields.isEmpty()) {			
+			for (String prefixField : parsed.prefixFields) {
 				SchemaField prefixSchemaField = core.getSchema().getFieldOrNull(
 						prefixField);
 				if (prefixSchemaField == null) {
@@ -170,28 +631,77 @@ public class CompositeIdUpdateProcessorFactory extends
 		}
 
 		final SchemaField postfixSchemaField = core.getSchema().getFieldOrNull(
-				getPostfixField());
+				parsed.postfixField);
 		if (postfixSchemaField == null) {
 			throw new SolrException(ErrorCode.SERVER_ERROR,
 				"Can't use postfixField which does not exist in schema: "
-							+ getPostfixField());
+							+ parsed.postfixField);
 		}
+		schemaFields.put(parsed.postfixField, postfixSchemaField);
 
 		final SchemaField compositeIdSchemaField = core.getSchema().getFieldOrNull(
-				getCompositeIdField());
+				parsed.compositeIdField);
 		if (compositeIdSchemaField == null) {
 			throw new SolrException(ErrorCode.SERVER_ERROR,
 				"Can't use compositeIdField which does not exist in schema: "
-							+ getCompositeIdField());
+							+ parsed.compositeIdField);
 		}
 
-		if (getOverwriteDupes() && 
+		if (parsed.overwriteDupes && 
 			(!postfixSchemaField.indexed() || !prefixFieldsIndexed)) {
 			throw new SolrException(ErrorCode.SERVER_ERROR,
 				"Can't set overwriteDupes when either prefixFields or postfixField are not indexed: "
-					+ "prefixFields=" + getPrefixFields()
-					+ " postfixField=" + getPostfixField());
+					+ "prefixFields=" + parsed.prefixFields
+					+ " postfixField=" + parsed.postfixField);
+		}
+		
+		List<String> shardKeyBitsLines = null;
+		if (parsed.shardKeyBitsFile != null) {
+			try {
+				shardKeyBitsLines = core.getResourceLoader().getLines(parsed.shardKeyBitsFile);
+			}
+			catch (IOException e) {
+				throw new SolrException(ErrorCode.SERVER_ERROR,
+					"Unable to read shardKeyBitsFile: " + parsed.shardKeyBitsFile, e);
+			}
 		}
+		ShardKeyBits shardKeyBits = ShardKeyBits.parse(parsed.shardKeyBitsDefaults, shardKeyBitsLines);
+		return parsed.compile(schemaFields, shardKeyBits, shardKeysTracked);
+	}
+
+
+	/**
+	 * Tells whether the shard key of every document is needed apart from
+	 * its bits, in which case the shard key cache is worth keeping
+	 * 
+	 * @return <code>true</code> if hot shard keys are tracked or the shard
+	 * 		key index is enabled
+	 */
+	private boolean isShardKeyTracked() {
+		return hotShardKeys != null || shardKeyIndexEnabled;
+	}
+
+	
+	/**
+	 * Compiles the configuration against schema fields that have already
+	 * been validated. Kept separate from {@link #inform(SolrCore)} so the
+	 * configuration can be compiled without a running core, e.g. by the
+	 * benchmarks.
+	 * 
+	 * @param fields the prefix and postfix schema fields, keyed by name
+	 */
+	void informSchemaFields(Map<String, SchemaField> fields) {
+		config = config.compile(fields, config.shardKeyBits, isShardKeyTracked());
+	}
+
+	
+	/**
+	 * Returns the configuration in effect
+	 * 
+	 * @return the configuration snapshot
+	 */
+	CompositeIdConfig getConfig() {
+		return config;
 	}
 
 	
@@ -201,7 +711,7 @@ public class CompositeIdUpdateProcessorFactory extends
 	 * @return the composite id field
 	 */
 	public String getCompositeIdField() {
-		return compositeIdField;
+		return config.compositeIdField;
 	}
 
 
@@ -211,7 +721,17 @@ public class CompositeIdUpdateProcessorFactory extends
 	 * @return the prefix fields
 	 */
 	public List<String> getPrefixFields() {
-		return prefixFields;
+		return config.prefixFields;
+	}
+	
+
+	/**
+	 * Returns the prefix fields of each shard key level
+	 * 
+	 * @return the prefix fields, grouped by level
+	 */
+	public List<List<String>> getPrefixFieldLevels() {
+		return config.prefixFieldLevels;
 	}
 	
 
@@ -221,7 +741,7 @@ public class CompositeIdUpdateProcessorFactory extends
 	 * @return the postfix field
 	 */
 	public String getPostfixField() {
-		return postfixField;
+		return config.postfixField;
 	}
 	
 
@@ -230,7 +750,7 @@ public class CompositeIdUpdateProcessorFactory extends
 	 * @return
 	 */
 	public boolean getOverwriteDupes() {
-		return overwriteDupes;
+		return config.overwriteDupes;
 	}	
 
 	
@@ -240,7 +760,7 @@ public class CompositeIdUpdateProcessorFactory extends
 	 * @return
 	 */
 	public boolean isEnabled() {
-		return enabled;
+		return config.enabled;
 	}
 
 
@@ -249,8 +769,410 @@ public class CompositeIdUpdateProcessorFactory extends
 	 * processor factory is enabled.
 	 * @param enabled
 	 */
-	public void setEnabled(boolean enabled) {
-		this.enabled = enabled;
+	public synchronized void setEnabled(boolean enabled) {
+		config = config.withEnabled(enabled);
+	}
+
+
+	/**
+	 * Returns how composite ids already carried by incoming documents are treated
+	 * @return the existing id mode
+	 */
+	CompositeIdConfig.ExistingIdMode getExistingIdMode() {
+		return config.existingIdMode;
+	}
+
+
+	/**
+	 * Return the flag indicating that updates forwarded by a shard leader
+	 * keep the composite id they carry.
+	 * @return
+	 */
+	public boolean getSkipOnReplicas() {
+		return config.skipOnReplicas;
+	}
+
+
+	/**
+	 * Returns the shard key cache
+	 * @return the cache, or <code>null</code> if the cache is disabled
+	 */
+	ShardKeyCache getShardKeyCache() {
+		return config.shardKeyCache;
+	}
+
+
+	/**
+	 * Returns the pool of canonical prefix values
+	 * @return the pool, or <code>null</code> if interning is disabled
+	 */
+	StringInternPool getPrefixValuePool() {
+		return prefixValuePool;
+	}
+
+
+	/**
+	 * Returns the sketch of the most frequent shard keys
+	 * @return the sketch, or <code>null</code> if disabled
+	 */
+	HeavyHitterSketch getHotShardKeys() {
+		return hotShardKeys;
+	}
+
+
+	/**
+	 * Returns the bit counts written after the shard key
+	 * @return the bit count table
+	 */
+	ShardKeyBits getShardKeyBits() {
+		return config.shardKeyBits;
+	}
+
+
+	/**
+	 * Returns the cache entry for the shard key held at the start of the
+	 * buffer. Without a cache a new entry is created.
+	 * 
+	 * @param config the configuration of the request
+	 * @param buffer the id buffer
+	 * @param shardKeyLength the length of the shard key
+	 * @param levelEnds the end of each shard key level in the buffer
+	 * @param levels the number of shard key levels
+	 * @return the shard key entry
+	 */
+	private static ShardKeyCache.Entry shardKeyEntry(CompositeIdConfig config,
+			StringBuilder buffer, int shardKeyLength, int[] levelEnds, int levels) {
+		if (config.shardKeyCache != null) {
+			return config.shardKeyCache.get(buffer, shardKeyLength, levelEnds, levels);
+		}
+		return ShardKeyCache.newEntry(buffer, shardKeyLength, levelEnds, levels, config.shardKeyBits);
+	}
+
+
+	/**
+	 * Builds the shard key of documents from prefix field values given as
+	 * strings, such as the values of a query, in the form written into their
+	 * composite ids. Only prefix fields that are single-valued string fields
+	 * are taken as given; with any other prefix field no shard key is built,
+	 * since its values would need the formatting of index time. The entry is
+	 * built without the shard key cache, which is left to indexing.
+	 * 
+	 * @param prefixValues the value of each prefix field, keyed by field name
+	 * @return the shard key including any bit counts, or <code>null</code> if a
+	 * 		prefix field has no value or is not a single-valued string field
+	 */
+	String routeKey(Map<String, String> prefixValues) {
+		CompositeIdConfig config = this.config;
+		CompositeIdExtractionPlan plan = config.extractionPlan;
+		if (!plan.isRoutable()) {
+			return null;
+		}
+		SolrInputDocument document = new SolrInputDocument();
+		for (Map.Entry<String, String> prefixValue : prefixValues.entrySet()) {
+			document.setField(prefixValue.getKey(), prefixValue.getValue());
+		}
+		
+		StringBuilder buffer = new StringBuilder();
+		int[] levelEnds = new int[plan.levelCount()];
+		int slot = 0;
+		for (int level = 0; level < plan.levelCount(); level++) {
+			if (level > 0) {
+				buffer.append(SHARD_KEY_SEPARATOR);
+			}
+			for (; slot < plan.levelEnd(level); slot++) {
+				if (!plan.prefixSlot(slot).append(document, buffer)) {
+					return null;
+				}
+			}
+			levelEnds[level] = buffer.length();
+		}
+		return ShardKeyCache.newEntry(buffer, buffer.length(), levelEnds, plan.levelCount(),
+				config.shardKeyBits).routeKey;
+	}
+
+
+	/**
+	 * Returns the shard key a document id was last indexed under on this
+	 * node, as recorded by the shard key index
+	 * 
+	 * @param documentId the raw document id
+	 * @return the shard key as written into ids, or <code>null</code> if it is
+	 * 		not known or the index is disabled
+	 */
+	String indexedRouteKey(String documentId) {
+		ShardKeyIndex index = shardKeyIndex;
+		return index == null ? null : index.get(documentId);
+	}
+
+
+	//////////////////////// SolrInfoMBean methods //////////////////////
+
+	@Override
+	public String getName() {
+		return getClass().getName();
+	}
+
+
+	@Override
+	public String getVersion() {
+		return "1.0";
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Generates composite ids of the form <shard_key>!<document_id>";
+	}
+
+
+	@Override
+	public Category getCategory() {
+		return Category.UPDATEHANDLER;
+	}
+
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+
+
+	@Override
+	public URL[] getDocs() {
+		return null;
+	}
+
+
+	@Override
+	public NamedList<Object> getStatistics() {
+		NamedList<Object> stats = new SimpleOrderedMap<Object>();
+		CompositeIdConfig config = this.config;
+		stats.add("enabled", config.enabled);
+		stats.add("docsProcessed", docsProcessed.get());
+		stats.add("docsSkipped", docsSkipped.get());
+		stats.add("atomicUpdatesResolved", atomicUpdatesResolved.get());
+		stats.add("docsRejected", docsRejected.get());
+		for (Rejection rejection : Rejection.values()) {
+			stats.add("docsRejected." + rejection.reason, docsRejectedByReason[rejection.ordinal()].get());
+		}
+		if (!config.insertOnlyTokens.isEmpty()) {
+			stats.add("insertOnlyRequests", insertOnlyRequests.get());
+			stats.add("insertOnlyRequestsRefused", insertOnlyRequestsRefused.get());
+			stats.add("insertOnlyDocs", insertOnlyDocs.get());
+			stats.add("insertOnlyDuplicates", insertOnlyDuplicates.get());
+		}
+		if (config.tolerant) {
+			stats.add("docsTolerated", docsTolerated.get());
+			stats.add("tolerantRequestsAborted", tolerantRequestsAborted.get());
+		}
+		if (latencySampleInterval > 0) {
+			stats.add("latencySampleInterval", latencySampleInterval);
+			processorTime.addTo(stats, "processorTime");
+			nextProcessorTime.addTo(stats, "nextProcessorTime");
+		}
+		stats.add("replicaUpdatesSkipped", replicaUpdatesSkipped.get());
+		if (config.existingIdMode != CompositeIdConfig.ExistingIdMode.REBUILD) {
+			stats.add("existingIdsKept", existingIdsKept.get());
+			stats.add("existingIdsFixed", existingIdsFixed.get());
+		}
+		
+		ShardKeyCache shardKeyCache = config.shardKeyCache;
+		if (shardKeyCache != null) {
+			long hits = shardKeyCache.getHits();
+			long lookups = hits + shardKeyCache.getMisses();
+			stats.add("shardKeyCacheLookups", lookups);
+			stats.add("shardKeyCacheHits", hits);
+			stats.add("shardKeyCacheHitRatio", lookups == 0 ? 0.0f : (float) hits / lookups);
+			stats.add("shardKeyCacheSize", shardKeyCache.size());
+			stats.add("shardKeyCacheMaxSize", shardKeyCache.getMaxSize());
+		}
+		
+		if (prefixValuePool != null) {
+			stats.add("prefixValuePoolHits", prefixValuePool.getHits());
+			stats.add("prefixValuePoolMisses", prefixValuePool.getMisses());
+			stats.add("prefixValuePoolSize", prefixValuePool.size());
+			stats.add("prefixValuePoolMaxSize", prefixValuePool.getMaxSize());
+		}
+		
+		if (hotShardKeys != null) {
+			stats.add("hotShardKeysTracked", hotShardKeys.getTrackedKeys());
+			NamedList<Object> hotKeys = new SimpleOrderedMap<Object>();
+			for (HeavyHitterSketch.HotKey hotKey : hotShardKeys.getHotKeys()) {
+				NamedList<Object> hotKeyStats = new SimpleOrderedMap<Object>();
+				hotKeyStats.add("count", hotKey.count);
+				hotKeyStats.add("ratePerSecond", hotKey.rate);
+				hotKeys.add(hotKey.shardKey, hotKeyStats);
+			}
+			stats.add("hotShardKeys", hotKeys);
+		}
+		
+		ShardKeyIndex index = shardKeyIndex;
+		if (index != null) {
+			stats.add("shardKeyIndexEntries", index.size());
+			stats.add("shardKeyIndexCapacity", index.capacity());
+			stats.add("shardKeyIndexShardKeys", index.shardKeyCount());
+			stats.add("shardKeyIndexCompactions", index.getCompactions());
+			stats.add("shardKeyIndexCompactionFailures", index.getCompactionFailures());
+			stats.add("shardKeyIndexDroppedEntries", index.getDroppedEntries());
+			stats.add("rawIdDeletesRewritten", rawIdDeletesRewritten.get());
+		}
+		
+		if (newIdFilterEnabled) {
+			IdBloomFilter filter = newIdFilter;
+			stats.add("docsAddedWithoutOverwrite", docsAddedWithoutOverwrite.get());
+			stats.add("newIdFilterReady", filter != null);
+			stats.add("newIdFilterBuilds", newIdFilterBuilds.get());
+			if (filter != null) {
+				stats.add("newIdFilterIds", filter.getIds());
+				stats.add("newIdFilterExpectedIds", filter.getExpectedIds());
+				stats.add("newIdFilterBits", filter.getBits());
+				stats.add("newIdFilterHashes", filter.getHashes());
+				stats.add("newIdFilterFalsePositiveRate", filter.getFalsePositiveRate());
+				stats.add("newIdFilterDeletesSinceBuild", newIdFilterDeletes.get() - newIdFilterDeletesAtBuild);
+			}
+		}
+		return stats;
+	}
+
+
+	/**
+	 * Returns the calling thread's id buffer, emptied and ready for use.
+	 * 
+	 * @return the reusable id buffer
+	 */
+	private static StringBuilder idBuffer() {
+		StringBuilder buffer = ID_BUFFER.get();
+		if (buffer.capacity() > ID_BUFFER_MAX_RETAINED_CAPACITY) {
+			buffer = new StringBuilder(ID_BUFFER_INITIAL_CAPACITY);
+			ID_BUFFER.set(buffer);
+		}
+		buffer.setLength(0);
+		return buffer;
+	}
+
+
+	/**
+	 * Returns whether the characters of an existing id, from the start, equal
+	 * the first <code>length</code> characters of the buffer.
+	 */
+	private static boolean startsWith(CharSequence existingId, StringBuilder buffer, int length) {
+		if (existingId.length() < length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (existingId.charAt(i) != buffer.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the position of the last shard key separator in an id
+	 * 
+	 * @return the position, or -1 if the id has no separator
+	 */
+	private static int lastSeparator(CharSequence id) {
+		for (int i = id.length() - 1; i >= 0; i--) {
+			if (id.charAt(i) == SHARD_KEY_SEPARATOR) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Encodes characters as UTF-8 into an array of the exact length, the way
+	 * Lucene encodes term text. Lucene sizes the array of a term built from a
+	 * <code>String</code> for the worst case, four bytes per character, and
+	 * the index writer keeps every update term until its deletes are applied.
+	 * The array is never reused for the same reason. An unpaired surrogate
+	 * is written as U+FFFD.
+	 * 
+	 * @param chars the characters to encode
+	 * @return the encoded bytes
+	 */
+	static BytesRef toUtf8(CharSequence chars) {
+		final int length = chars.length();
+		int utf8Length = 0;
+		for (int i = 0; i < length; i++) {
+			char ch = chars.charAt(i);
+			if (ch < 0x80) {
+				utf8Length++;
+			}
+			else if (ch < 0x800) {
+				utf8Length += 2;
+			}
+			else if (Character.isHighSurrogate(ch) && i + 1 < length 
+					&& Character.isLowSurrogate(chars.charAt(i + 1))) {
+				utf8Length += 4;
+				i++;
+			}
+			else {
+				utf8Length += 3;
+			}
+		}
+		
+		byte[] bytes = new byte[utf8Length];
+		if (utf8Length == length) {
+			for (int i = 0; i < length; i++) {
+				bytes[i] = (byte) chars.charAt(i);
+			}
+			return new BytesRef(bytes);
+		}
+		int upto = 0;
+		for (int i = 0; i < length; i++) {
+			int code = chars.charAt(i);
+			if (code < 0x80) {
+				bytes[upto++] = (byte) code;
+			}
+			else if (code < 0x800) {
+				bytes[upto++] = (byte) (0xC0 | (code >> 6));
+				bytes[upto++] = (byte) (0x80 | (code & 0x3F));
+			}
+			else {
+				if (Character.isHighSurrogate((char) code) && i + 1 < length 
+						&& Character.isLowSurrogate(chars.charAt(i + 1))) {
+					code = Character.toCodePoint((char) code, chars.charAt(++i));
+					bytes[upto++] = (byte) (0xF0 | (code >> 18));
+					bytes[upto++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+				}
+				else {
+					if (code >= Character.MIN_SURROGATE && code <= Character.MAX_SURROGATE) {
+						code = 0xFFFD;
+					}
+					bytes[upto++] = (byte) (0xE0 | (code >> 12));
+				}
+				bytes[upto++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+				bytes[upto++] = (byte) (0x80 | (code & 0x3F));
+			}
+		}
+		return new BytesRef(bytes);
+	}
+
+
+	/**
+	 * Returns whether a document is an atomic update, i.e. holds at least
+	 * one field operation
+	 */
+	private static boolean isAtomicUpdate(SolrInputDocument document) {
+		for (SolrInputField field : document.values()) {
+			if (field.getValue() instanceof Map) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private static StripedCounter[] newCounters(int count) {
+		StripedCounter[] counters = new StripedCounter[count];
+		for (int i = 0; i < count; i++) {
+			counters[i] = new StripedCounter();
+		}
+		return counters;
 	}
 
 
@@ -260,10 +1182,491 @@ public class CompositeIdUpdateProcessorFactory extends
 	 */
 	class CompositeIdUpdateProcessor extends UpdateRequestProcessor {
 		
+		/** The configuration in effect for this request */
+		private final CompositeIdConfig config;
+		/** The response of the request, which reports left out documents */
+		private final SolrQueryResponse rsp;
+		/** The ids and failure reasons of the documents left out, or <code>null</code> if none */
+		private NamedList<Object> failures;
+		/** The number of documents left out */
+		private int failureCount;
+		/** The shard key entry of the current document, or <code>null</code> */
+		private ShardKeyCache.Entry shardKey;
+		/** The field at fault in the current document, if it was rejected */
+		private String rejectedField;
+		/** The extraction plan in effect for this request */
+		private final CompositeIdExtractionPlan plan;
+		/** Whether the request was forwarded by the shard leader, whose ids are trusted */
+		private final boolean fromLeader;
+		/** The shard key of each document id, or <code>null</code> if disabled */
+		private final ShardKeyIndex index;
+		/** The id of the current document to record in the shard key index once added, or <code>null</code> */
+		private String indexedId;
+		/** Where the document id starts in {@link #indexedId} */
+		private int indexedIdStart;
+		/** The id of the current document as added to the new id filters, or <code>null</code> */
+		private BytesRef filteredId;
+		/** The new id filters the current document's id was added to */
+		private IdBloomFilter filteredIdCurrent, filteredIdPending;
+		/** The claim on the current document's id, released once the document is passed on */
+		private CountDownLatch filteredIdClaim;
+		/** Whether the shard key must be looked up for its hash or bit count */
+		private final boolean needsShardKeyEntry;
+		/** Whether diagnostic events are written for this request */
+		private final boolean events;
+		/** The time in this processor above which a slow document event is written, 0 if none */
+		private final long slowDocumentNanos;
+		/** The ids of an insert-only request, or <code>null</code> if the request overwrites */
+		private final FingerprintSet insertOnlyIds;
+		/** The number of ids seen more than once in this request */
+		private int duplicateCount;
+		/** The first duplicate ids, or <code>null</code> if none */
+		private List<String> duplicates;
+		/** The number of documents left before the next latency sample */
+		private int sampleCountdown;
+		/** The end of each shard key level within the id buffer, for the current document */
+		private final int[] levelEnds = new int[MAX_SHARD_KEY_LEVELS];
+		
 		public CompositeIdUpdateProcessor(SolrQueryRequest req,
 				SolrQueryResponse rsp, CompositeIdUpdateProcessorFactory factory,
 				UpdateRequestProcessor next) {
 			super(next);
+			this.config = factory.getConfig();
+			this.rsp = rsp;
+			this.plan = config.extractionPlan;
+			this.fromLeader = config.skipOnReplicas && DistribPhase.parseParam(
+				req.getParams().get(DistributedUpdateProcessor.DISTRIB_UPDATE_PARAM)) == DistribPhase.FROMLEADER;
+			this.index = shardKeyIndex;
+			this.insertOnlyIds = isInsertOnly(req) ? new FingerprintSet() : null;
+			this.events = CompositeIdEvents.isEnabled();
+			this.slowDocumentNanos = events ? slowDocumentThresholdMicros * 1000L : 0L;
+			this.needsShardKeyEntry = config.shardKeyBits.isEnabled()
+					|| hotShardKeys != null || index != null || events;
+			//Start at a random point so that small requests are sampled too
+			this.sampleCountdown = latencySampleInterval <= 0 ? 0
+					: (int) ((System.nanoTime() & Integer.MAX_VALUE) % latencySampleInterval) + 1;
+		}
+
+
+		/**
+		 * Returns whether a request asks for its documents to be added without
+		 * overwriting, checking its token against the allowed ones
+		 * 
+		 * @throws SolrException if the request is not allowed to
+		 */
+		private boolean isInsertOnly(SolrQueryRequest req) {
+			if (!req.getParams().getBool(INSERT_ONLY_PARAM, false) || fromLeader) {
+				return false;
+			}
+			String token = req.getParams().get(INSERT_ONLY_TOKEN_PARAM);
+			if (token == null || !config.insertOnlyTokens.contains(token)) {
+				insertOnlyRequestsRefused.increment();
+				throw new SolrException(ErrorCode.FORBIDDEN,
+					INSERT_ONLY_PARAM + " requires a " + INSERT_ONLY_TOKEN_PARAM 
+						+ " listed in insertOnlyTokens");
+			}
+			insertOnlyRequests.increment();
+			return true;
+		}
+
+
+		/**
+		 * Counts an id already added by this insert-only request
+		 * 
+		 * @param id the composite id
+		 */
+		private void checkDuplicate(String id) {
+			if (insertOnlyIds.add(ShardKeyIndex.fingerprint(id, 0, id.length()))) {
+				return;
+			}
+			insertOnlyDuplicates.increment();
+			duplicateCount++;
+			if (duplicateCount <= MAX_REPORTED_DUPLICATES) {
+				if (duplicates == null) {
+					duplicates = new ArrayList<String>();
+				}
+				duplicates.add(id);
+			}
+		}
+
+
+		/**
+		 * Returns whether the latency of the current document is recorded
+		 */
+		private boolean isSampled() {
+			if (latencySampleInterval <= 0 || --sampleCountdown > 0) {
+				return false;
+			}
+			sampleCountdown = latencySampleInterval;
+			return true;
+		}
+
+
+		/**
+		 * Records an invalid document left out of a tolerant request
+		 * 
+		 * @param cmd the add command holding the document
+		 * @param rejection the reason the document is invalid
+		 * @throws SolrException once more documents fail than the request may leave out
+		 */
+		private void tolerate(AddUpdateCommand cmd, Rejection rejection) {
+			docsTolerated.increment();
+			if (failures == null) {
+				failures = new SimpleOrderedMap<Object>();
+			}
+			failureCount++;
+			Object id = cmd.getSolrInputDocument().getFieldValue(config.postfixField);
+			String message = rejection.message + rejectedField;
+			failures.add(id == null ? null : id.toString(), message);
+			
+			if (config.maxFailures >= 0 && failureCount > config.maxFailures) {
+				tolerantRequestsAborted.increment();
+				reportFailures();
+				throw new SolrException(ErrorCode.BAD_REQUEST,
+					"Aborting the request after " + failureCount + " documents without a valid "
+						+ "composite id, more than maxFailures=" + config.maxFailures 
+						+ ". Documents before the last failure were processed. Last failure: "
+						+ message);
+			}
+		}
+
+
+		/**
+		 * Adds the documents left out to the response header
+		 */
+		private void reportFailures() {
+			if (failures == null) {
+				return;
+			}
+			NamedList<Object> target = responseHeader();
+			target.add("compositeIdFailureCount", failureCount);
+			target.add("compositeIdFailures", failures);
+			failures = null;
+		}
+
+
+		/**
+		 * Adds the number of duplicate ids of an insert-only request, and the
+		 * first of them, to the response header
+		 */
+		private void reportDuplicates() {
+			if (insertOnlyIds == null) {
+				return;
+			}
+			NamedList<Object> target = responseHeader();
+			target.add("compositeIdInsertOnlyDocs", insertOnlyIds.size() + duplicateCount);
+			target.add("compositeIdDuplicateCount", duplicateCount);
+			if (duplicates != null) {
+				target.add("compositeIdDuplicates", duplicates);
+				duplicates = null;
+			}
+		}
+
+
+		private NamedList<Object> responseHeader() {
+			NamedList<Object> header = rsp.getResponseHeader();
+			return header != null ? header : rsp.getValues();
+		}
+
+
+		/**
+		 * Counts a rejected document and notes the field at fault
+		 * 
+		 * @param rejection the reason the document is rejected
+		 * @param field the field at fault
+		 * @param buffer the id buffer
+		 * @param keyLength the length of the shard key read so far
+		 * @return the rejection
+		 */
+		private Rejection reject(Rejection rejection, String field, StringBuilder buffer, int keyLength) {
+			docsRejected.increment();
+			docsRejectedByReason[rejection.ordinal()].increment();
+			rejectedField = field;
+			if (events) {
+				int firstLevelEnd = 0;
+				while (firstLevelEnd < keyLength && buffer.charAt(firstLevelEnd) != SHARD_KEY_SEPARATOR) {
+					firstLevelEnd++;
+				}
+				CompositeIdEvents.validationFailure(rejection.reason, field, plan.prefixCount() + 1,
+					keyLength, RouteHash.hash(buffer, 0, firstLevelEnd));
+			}
+			return rejection;
+		}
+
+
+		/**
+		 * Gives an atomic update that does not set every prefix field the
+		 * composite id of the document it updates. The id is the one the
+		 * update carries if it is already a composite id; otherwise it is built
+		 * from the shard key index or read from the realtime searcher through
+		 * the postfix field.
+		 * 
+		 * @param cmd the add command holding the atomic update
+		 * @param prefixField the first prefix field the update does not set
+		 * @param buffer the id buffer
+		 * @return <code>null</code> if the id was resolved, or why the update is rejected
+		 */
+		private Rejection resolveStoredId(AddUpdateCommand cmd, String prefixField,
+				StringBuilder buffer) throws IOException {
+			SolrInputDocument document = cmd.getSolrInputDocument();
+			String storedId = null;
+			Object existing = document.getFieldValue(config.compositeIdField);
+			if (existing instanceof CharSequence && lastSeparator((CharSequence) existing) >= 0) {
+				storedId = existing.toString();
+			}
+			else {
+				Object postfix = document.getFieldValue(config.postfixField);
+				if (postfix != null && !(postfix instanceof Map)) {
+					String documentId = postfix.toString();
+					String indexedShardKey = index == null ? null : index.get(documentId);
+					if (indexedShardKey != null) {
+						storedId = indexedShardKey + SHARD_KEY_SEPARATOR + documentId;
+					}
+					else if (!config.postfixIsCompositeId && core != null) {
+						storedId = lookupStoredId(documentId);
+					}
+					if (storedId != null) {
+						document.setField(config.compositeIdField, storedId);
+					}
+				}
+			}
+			if (storedId == null) {
+				return reject(Rejection.MISSING_PREFIX_VALUE, prefixField, buffer, buffer.length());
+			}
+			
+			atomicUpdatesResolved.increment();
+			if (config.overwriteDupes) {
+				cmd.updateTerm = new Term(config.compositeIdField, toUtf8(storedId));
+			}
+			return null;
+		}
+
+
+		/**
+		 * Finds the composite id of the document whose postfix field holds a
+		 * value, with a single term lookup in the realtime searcher.
+		 * 
+		 * @param postfixValue the document id
+		 * @return the stored composite id, or <code>null</code> if there is no such document
+		 */
+		private String lookupStoredId(String postfixValue) throws IOException {
+			SchemaField postfixSchemaField = core.getSchema().getFieldOrNull(config.postfixField);
+			if (postfixSchemaField == null || !postfixSchemaField.indexed()) {
+				return null;
+			}
+			RefCounted<SolrIndexSearcher> searcherRef = core.getRealtimeSearcher();
+			try {
+				SolrIndexSearcher searcher = searcherRef.get();
+				int docId = searcher.getFirstMatch(new Term(config.postfixField,
+						postfixSchemaField.getType().readableToIndexed(postfixValue)));
+				if (docId < 0) {
+					return null;
+				}
+				return searcher.doc(docId, Collections.singleton(config.compositeIdField))
+						.get(config.compositeIdField);
+			}
+			finally {
+				searcherRef.decref();
+			}
+		}
+
+
+		/**
+		 * Claims the id of a document until the document has been passed on,
+		 * and adds it to the new id filters. Two adds of the same id racing
+		 * each other could both set bits of the filter and both take the id for
+		 * new, so an add waits for any other add holding the id: once the
+		 * first one has reached the index, the filter tells the second one to
+		 * overwrite it.
+		 * 
+		 * @param idBytes the UTF-8 bytes of the composite id
+		 * @return <code>true</code> if the id has definitely never been indexed
+		 */
+		private boolean isNewId(BytesRef idBytes) {
+			CountDownLatch claim = new CountDownLatch(1);
+			CountDownLatch holder;
+			while ((holder = newIdClaims.putIfAbsent(idBytes, claim)) != null) {
+				try {
+					holder.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SolrException(ErrorCode.SERVER_ERROR, 
+						"Interrupted while another add of the same id was in progress", e);
+				}
+			}
+			filteredId = idBytes;
+			filteredIdClaim = claim;
+			filteredIdCurrent = newIdFilter;
+			filteredIdPending = pendingNewIdFilter;
+			if (filteredIdPending != null) {
+				filteredIdPending.add(idBytes);
+			}
+			return filteredIdCurrent != null && filteredIdCurrent.add(idBytes);
+		}
+
+
+		/**
+		 * Adds the id of the document just passed on to any new id filter
+		 * published since it was checked, and releases its claim. A filter 
+		 * being built may have read the index before the document reached it.
+		 */
+		private void refilterId() {
+			IdBloomFilter current = newIdFilter;
+			IdBloomFilter pending = pendingNewIdFilter;
+			if (current != null && current != filteredIdCurrent && current != filteredIdPending) {
+				current.add(filteredId);
+			}
+			if (pending != null && pending != filteredIdCurrent && pending != filteredIdPending) {
+				pending.add(filteredId);
+			}
+			newIdClaims.remove(filteredId, filteredIdClaim);
+			filteredIdClaim.countDown();
+			filteredIdClaim = null;
+			filteredId = null;
+		}
+
+
+		/**
+		 * Builds the composite id of a document and sets it on the document.
+		 * The shard key entry, if one was needed, is left in {@link #shardKey}.
+		 * 
+		 * @param cmd the add command holding the document
+		 * @return <code>null</code> on success, or why the document is rejected
+		 */
+		private Rejection buildCompositeId(AddUpdateCommand cmd) throws IOException {
+	        SolrInputDocument document = cmd.getSolrInputDocument();
+	        StringBuilder buffer = idBuffer();
+	        
+	        int slot = 0;
+	        for (int level = 0; level < plan.levelCount(); level++) {
+	        	if (level > 0) {
+	        		buffer.append(SHARD_KEY_SEPARATOR);
+	        	}
+	        	for (; slot < plan.levelEnd(level); slot++) {
+		        	CompositeIdExtractionPlan.Slot prefixSlot = plan.prefixSlot(slot);
+		        	if (prefixValuePool != null) {
+		        		prefixValuePool.internFieldValue(document, prefixSlot.fieldName);
+		        	}
+			        if (!prefixSlot.append(document, buffer)) {
+			        	if (isAtomicUpdate(document)) {
+			        		return resolveStoredId(cmd, prefixSlot.fieldName, buffer);
+			        	}
+			        	return reject(Rejection.MISSING_PREFIX_VALUE, prefixSlot.fieldName,
+			        		buffer, buffer.length());
+			        }
+	        	}
+	        	levelEnds[level] = buffer.length();
+	        }
+	        
+	        if (needsShardKeyEntry) {
+	        	final int shardKeyLength = buffer.length();
+	        	final boolean cached = !events || config.shardKeyCache == null
+	        			|| config.shardKeyCache.peek(buffer, shardKeyLength) != null;
+	        	shardKey = shardKeyEntry(config, buffer, shardKeyLength, levelEnds, plan.levelCount());
+	        	if (!cached) {
+	        		CompositeIdEvents.cacheMiss(shardKey.shardKey, plan.prefixCount() + 1,
+	        			shardKeyLength, shardKey.shardKeyHash);
+	        	}
+	        	if (shardKey.routeKey.length() != shardKeyLength) {
+	        		//Rewrite the shard key with its bit counts
+	        		buffer.setLength(0);
+	        		buffer.append(shardKey.routeKey);
+	        	}
+	        	if (hotShardKeys != null) {
+	        		hotShardKeys.add(shardKey.shardKey, shardKey.charsHash);
+	        	}
+	        }
+	        
+	        final int separatorIndex = buffer.length();
+	        buffer.append(SHARD_KEY_SEPARATOR);
+	        
+	        //An existing composite id that matches is kept as is
+	        String compositeIdFieldValue = null;
+	        boolean hasPostfix;
+	        Object existing = config.existingIdMode == CompositeIdConfig.ExistingIdMode.REBUILD 
+	        		? null : document.getFieldValue(config.compositeIdField);
+	        if (existing instanceof CharSequence && config.postfixIsCompositeId) {
+	        	//The field holds either the raw document id or a composite id
+	        	CharSequence existingId = (CharSequence) existing;
+	        	int lastSeparator = lastSeparator(existingId);
+	        	if (lastSeparator < 0) {
+	        		hasPostfix = plan.postfixSlot().append(document, buffer);
+	        	}
+	        	else if (startsWith(existingId, buffer, separatorIndex + 1)) {
+	        		existingIdsKept.increment();
+	        		compositeIdFieldValue = existingId.toString();
+	        		hasPostfix = existingId.length() > separatorIndex + 1;
+	        	}
+	        	else if (config.existingIdMode == CompositeIdConfig.ExistingIdMode.REJECT) {
+	        		return reject(Rejection.MISMATCHED_EXISTING_ID, config.compositeIdField,
+	        			buffer, separatorIndex);
+	        	}
+	        	else {
+	        		existingIdsFixed.increment();
+	        		buffer.append(existingId, lastSeparator + 1, existingId.length());
+	        		hasPostfix = buffer.length() > separatorIndex + 1;
+	        	}
+	        }
+	        else {
+	        	hasPostfix = plan.postfixSlot().append(document, buffer);
+	        	if (hasPostfix && existing instanceof CharSequence) {
+	        		CharSequence existingId = (CharSequence) existing;
+	        		if (existingId.length() == buffer.length() 
+	        				&& startsWith(existingId, buffer, buffer.length())) {
+	        			existingIdsKept.increment();
+	        			compositeIdFieldValue = existingId.toString();
+	        		}
+	        		else if (config.existingIdMode == CompositeIdConfig.ExistingIdMode.REJECT) {
+	        			return reject(Rejection.MISMATCHED_EXISTING_ID, config.compositeIdField,
+	        				buffer, separatorIndex);
+	        		}
+	        		else {
+	        			existingIdsFixed.increment();
+	        		}
+	        	}
+	        }
+	        
+	        //Perform null check on postfix
+	        if (hasPostfix) {
+	        	if (compositeIdFieldValue == null) {
+		        	//Add/Update composite id in document
+		        	compositeIdFieldValue = buffer.toString();
+		        	document.setField(config.compositeIdField, compositeIdFieldValue);
+	        	}
+
+	        	if (insertOnlyIds != null && !isAtomicUpdate(document)) {
+	        		//Added without looking for an earlier document; atomic updates still merge
+	        		cmd.overwrite = false;
+	        		insertOnlyDocs.increment();
+	        		checkDuplicate(compositeIdFieldValue);
+	        		if (newIdFilterEnabled) {
+	        			isNewId(toUtf8(compositeIdFieldValue));
+	        		}
+	        	}
+	        	else if (config.overwriteDupes) {
+	        		BytesRef idBytes = toUtf8(compositeIdFieldValue);
+	        		if (newIdFilterEnabled && isNewId(idBytes)) {
+	        			//Nothing to overwrite, so the index writer does a plain add
+	        			cmd.overwrite = false;
+	        			docsAddedWithoutOverwrite.increment();
+	        		}
+	        		else {
+	        			cmd.updateTerm = new Term(config.compositeIdField, idBytes);
+	        		}
+		        }
+	        	
+	        	if (index != null) {
+	        		//Recorded once the rest of the chain has added the document
+	        		indexedId = compositeIdFieldValue;
+	        		indexedIdStart = separatorIndex + 1;
+	        	}
+	        }
+	        else {
+	        	return reject(Rejection.MISSING_POSTFIX_VALUE, config.postfixField,
+	        		buffer, separatorIndex);
+	        }
+	        return null;
 		}
 
 
@@ -274,52 +1677,139 @@ public class CompositeIdUpdateProcessorFactory extends
 	    @Override
 	    public void processAdd(AddUpdateCommand cmd) throws IOException {
 	    	
-	    	// Only proceed if the factory is enabled
-	    	if (enabled) {
-		        SolrInputDocument document = cmd.getSolrInputDocument();
-		        
-		        StringBuffer prefixFieldsValue = new StringBuffer();
-		        for (String prefixFieldName : prefixFields) {
-		        	String prefixFieldValue = String.valueOf(document.getFieldValue(prefixFieldName));
-		        	
-			        if (!prefixFieldValue.equals("null") && (prefixFieldValue.trim().length() > 0)) {
-		        		prefixFieldsValue.append(prefixFieldValue);
-			        }
-			        else {
-						throw new SolrException(ErrorCode.SERVER_ERROR,
-							"A prefix field must not be empty or null as it's used as a part of a composite id. " +
-							"Detected the following prefix field is empty or null: "+ prefixFieldName);
-			        }
-		        }
-	
-		        String postFixFieldValue = String.valueOf(document.getFieldValue(postfixField));
-		        
-		        //Perform null check on prefix and postfix
-		        if ((prefixFieldsValue.toString().length() > 0) &&
-		        	!postFixFieldValue.equals("null") && (postFixFieldValue.trim().length() > 0)) {
-		        	//Add/Update composite id in document
-		        	String compositeIdFieldValue = 
-		        		prefixFieldsValue.toString() + SHARD_KEY_SEPARATOR + postFixFieldValue;
-		        	
-		        	document.setField(compositeIdField, compositeIdFieldValue);
-	
-		        	if (overwriteDupes) {
-			            cmd.updateTerm = new Term(compositeIdField, compositeIdFieldValue);
-			        }
-		        }
-		        else {
-					throw new SolrException(ErrorCode.SERVER_ERROR,
-							"Both prefixFields and postfixField values must be non-null/empty. " +
-							"Input values for these fields are: "
-								+ "prefixFields=" + getPrefixFields()
-								+ "postfixField=" + getPostfixField());
-		        }
-	    	}
+	    	final boolean sampled = isSampled();
+	    	final boolean timed = sampled || slowDocumentNanos > 0;
+	    	final long start = timed ? System.nanoTime() : 0L;
+	    	shardKey = null;
+	    	filteredId = null;
+	    	indexedId = null;
 	    	
-	        //On to the next command?
-			if (next != null) {
-				next.processAdd(cmd);
-			}
+	    	try {
+		    	// Only proceed if the factory is enabled. The leader already built
+		    	// the id of an update it forwards to its replicas.
+		    	if (fromLeader) {
+		    		replicaUpdatesSkipped.increment();
+		    		docsSkipped.increment();
+		    	}
+		    	else if (config.enabled) {
+		    		Rejection rejection = buildCompositeId(cmd);
+		    		if (rejection != null) {
+		    			if (!config.tolerant) {
+		    				throw new ValidationException(rejection, rejectedField);
+		    			}
+		    			//The document is left out and the rest of the batch goes on
+		    			tolerate(cmd, rejection);
+		    			return;
+		    		}
+			        docsProcessed.increment();
+		    	}
+		    	else {
+		    		docsSkipped.increment();
+		    	}
+	    	
+		    	long nextStart = 0L;
+		    	if (timed) {
+		    		nextStart = System.nanoTime();
+		    		if (sampled) {
+		    			processorTime.record(nextStart - start);
+		    		}
+		    		if (slowDocumentNanos > 0 && nextStart - start >= slowDocumentNanos) {
+		    			Object id = cmd.getSolrInputDocument().getFieldValue(config.compositeIdField);
+		    			CompositeIdEvents.slowDocument(id == null ? null : id.toString(), nextStart - start,
+		    				plan.prefixCount() + 1, shardKey == null ? 0 : shardKey.shardKey.length(),
+		    				shardKey == null ? 0 : shardKey.shardKeyHash);
+		    		}
+		    	}
+	    	
+		        //On to the next command?
+				if (next != null) {
+					try {
+						next.processAdd(cmd);
+					}
+					finally {
+						if (sampled) {
+							nextProcessorTime.record(System.nanoTime() - nextStart);
+						}
+					}
+				}
+				
+				//A document the chain failed to add must not be found by its raw id
+				if (indexedId != null) {
+					index.put(indexedId, indexedIdStart, shardKey.routeKey);
+				}
+	    	}
+	    	finally {
+	    		//Releases the claim on the id even if the document went no further
+	    		if (filteredId != null) {
+	    			refilterId();
+	    		}
+	    	}
 	    }
+
+
+		/**
+		 * Rewrites a delete by raw document id into a delete by the composite
+		 * id found in the shard key index, and forgets the deleted id.
+		 * 
+		 */
+		@Override
+		public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+			if (newIdFilterEnabled && cmd.isDeleteById()) {
+				newIdFilterDeletes.increment();
+			}
+			if (index != null && !fromLeader && config.enabled && cmd.isDeleteById()) {
+				String id = cmd.getId();
+				int lastSeparator = lastSeparator(id);
+				if (lastSeparator < 0) {
+					String indexedShardKey = index.get(id);
+					if (indexedShardKey != null) {
+						cmd.id = indexedShardKey + SHARD_KEY_SEPARATOR + id;
+						cmd.indexedId = null;
+						rawIdDeletesRewritten.increment();
+					}
+					index.remove(id);
+				}
+				else {
+					index.remove(id.substring(lastSeparator + 1));
+				}
+			}
+			super.processDelete(cmd);
+		}
+
+
+		/**
+		 * Writes the shard key index through to disk along with the commit, and
+		 * once it is done rebuilds the new id filter if it is missing, full or
+		 * stale
+		 * 
+		 */
+		@Override
+		public void processCommit(CommitUpdateCommand cmd) throws IOException {
+			if (index != null) {
+				index.sync();
+			}
+			super.processCommit(cmd);
+			if (newIdFilterEnabled && !isReplaying()) {
+				//Deleted ids stay in the filter, and a full one lets more new ids through
+				IdBloomFilter filter = newIdFilter;
+				if (filter == null || filter.isFull() 
+						|| newIdFilterDeletes.get() - newIdFilterDeletesAtBuild > filter.getIds() / 4) {
+					buildNewIdFilter();
+				}
+			}
+		}
+
+
+		/**
+		 * Reports the documents left out of a tolerant request and the
+		 * duplicate ids of an insert-only one
+		 * 
+		 */
+		@Override
+		public void finish() throws IOException {
+			reportFailures();
+			reportDuplicates();
+			super.finish();
+		}
 	}
 }
@@ -0,0 +1,249 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.Date;
+import java.util.UUID;
+
+import org.apache.solr.schema.DateField;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.schema.TextField;
+import org.apache.solr.schema.TrieDateField;
+import org.apache.solr.schema.TrieIntField;
+import org.apache.solr.schema.TrieLongField;
+import org.apache.solr.schema.UUIDField;
+
+/**
+ * Appends the value of a document field to the buffer in which a composite id
+ * is being assembled. One formatter is chosen per field from its schema
+ * {@link FieldType} when the extraction plan is compiled, so that no type
+ * checks against the schema are needed while documents are processed.
+ * <p>
+ * Values that do not have the Java type expected for the field (for instance a
+ * string sent for a long field) are appended the same way
+ * {@link #GENERIC} appends them.
+ *
+ * @author afajem
+ */
+abstract class FieldValueFormatter {
+
+	/** Formatter used for fields whose type has no dedicated formatter */
+	static final FieldValueFormatter GENERIC = new FieldValueFormatter() {
+		@Override
+		void append(Object value, StringBuilder buffer) {
+			if (value instanceof CharSequence) {
+				buffer.append((CharSequence) value);
+			}
+			else if (value instanceof Long) {
+				buffer.append(((Long) value).longValue());
+			}
+			else if (value instanceof Integer) {
+				buffer.append(((Integer) value).intValue());
+			}
+			else {
+				buffer.append(String.valueOf(value));
+			}
+		}
+	};
+
+	/** Formatter for string and text fields */
+	static final FieldValueFormatter STRING = new FieldValueFormatter() {
+		@Override
+		void append(Object value, StringBuilder buffer) {
+			if (value instanceof CharSequence) {
+				buffer.append((CharSequence) value);
+			}
+			else {
+				GENERIC.append(value, buffer);
+			}
+		}
+	};
+
+	/** Formatter for trie int fields */
+	static final FieldValueFormatter INT = new FieldValueFormatter() {
+		@Override
+		void append(Object value, StringBuilder buffer) {
+			if (value instanceof Integer) {
+				buffer.append(((Integer) value).intValue());
+			}
+			else {
+				GENERIC.append(value, buffer);
+			}
+		}
+	};
+
+	/** Formatter for trie long fields */
+	static final FieldValueFormatter LONG = new FieldValueFormatter() {
+		@Override
+		void append(Object value, StringBuilder buffer) {
+			if (value instanceof Long || value instanceof Integer) {
+				buffer.append(((Number) value).longValue());
+			}
+			else {
+				GENERIC.append(value, buffer);
+			}
+		}
+	};
+
+	/**
+	 * Formatter for date fields. <code>Date</code> values are written in the
+	 * canonical UTC form used by Solr, e.g. <code>2013-06-01T10:15:30.5Z</code>.
+	 * Only chosen when canonical dates are asked for, since other formatters
+	 * write <code>Date.toString()</code> and ids built before would change.
+	 */
+	static final FieldValueFormatter DATE = new FieldValueFormatter() {
+		@Override
+		void append(Object value, StringBuilder buffer) {
+			if (value instanceof Date) {
+				appendDate(((Date) value).getTime(), buffer);
+			}
+			else {
+				GENERIC.append(value, buffer);
+			}
+		}
+	};
+
+	/** Formatter for UUID fields */
+	static final FieldValueFormatter UUID_VALUE = new FieldValueFormatter() {
+		@Override
+		void append(Object value, StringBuilder buffer) {
+			if (value instanceof UUID) {
+				UUID uuid = (UUID) value;
+				long msb = uuid.getMostSignificantBits();
+				long lsb = uuid.getLeastSignificantBits();
+				appendHex(msb >>> 32, 8, buffer);
+				buffer.append('-');
+				appendHex(msb >>> 16, 4, buffer);
+				buffer.append('-');
+				appendHex(msb, 4, buffer);
+				buffer.append('-');
+				appendHex(lsb >>> 48, 4, buffer);
+				buffer.append('-');
+				appendHex(lsb, 12, buffer);
+			}
+			else {
+				GENERIC.append(value, buffer);
+			}
+		}
+	};
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+
+	/**
+	 * Appends a non-null field value to the buffer.
+	 *
+	 * @param value the field value
+	 * @param buffer the buffer to append to
+	 */
+	abstract void append(Object value, StringBuilder buffer);
+
+
+	/**
+	 * Chooses the formatter for a schema field type.
+	 *
+	 * @param type the field type declared in the schema
+	 * @param canonicalDates whether date values are written in Solr's canonical
+	 * 		form rather than with <code>Date.toString()</code>
+	 * @return the formatter for values of that type
+	 */
+	static FieldValueFormatter forType(FieldType type, boolean canonicalDates) {
+		if (type instanceof StrField || type instanceof TextField) {
+			return STRING;
+		}
+		if (type instanceof TrieIntField) {
+			return INT;
+		}
+		if (type instanceof TrieLongField) {
+			return LONG;
+		}
+		if (canonicalDates && (type instanceof TrieDateField || type instanceof DateField)) {
+			return DATE;
+		}
+		if (type instanceof UUIDField) {
+			return UUID_VALUE;
+		}
+		return GENERIC;
+	}
+
+
+	/**
+	 * Appends the low <code>digits</code> nibbles of a value as lower case hex.
+	 */
+	private static void appendHex(long value, int digits, StringBuilder buffer) {
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			buffer.append(HEX_DIGITS[(int) (value >>> shift) & 0xf]);
+		}
+	}
+
+
+	/**
+	 * Appends a zero padded, non-negative number.
+	 */
+	private static void appendPadded(long value, int digits, StringBuilder buffer) {
+		long limit = 1;
+		while (--digits > 0) {
+			limit *= 10;
+		}
+		for (; limit > 1 && value < limit; limit /= 10) {
+			buffer.append('0');
+		}
+		buffer.append(value);
+	}
+
+
+	/**
+	 * Appends epoch milliseconds as a UTC date in Solr's canonical format,
+	 * without going through <code>Calendar</code> or <code>DateFormat</code>.
+	 */
+	static void appendDate(long epochMillis, StringBuilder buffer) {
+		long days = epochMillis / MILLIS_PER_DAY;
+		long millisOfDay = epochMillis % MILLIS_PER_DAY;
+		if (millisOfDay < 0) {
+			millisOfDay += MILLIS_PER_DAY;
+			days--;
+		}
+
+		//Civil date from days since 1970-01-01 (proleptic Gregorian calendar)
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long monthIndex = (5 * dayOfYear + 2) / 153;
+		long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		if (year < 0) {
+			buffer.append('-');
+			year = -year;
+		}
+		appendPadded(year, 4, buffer);
+		buffer.append('-');
+		appendPadded(month, 2, buffer);
+		buffer.append('-');
+		appendPadded(day, 2, buffer);
+		buffer.append('T');
+		appendPadded(millisOfDay / 3600000, 2, buffer);
+		buffer.append(':');
+		appendPadded(millisOfDay / 60000 % 60, 2, buffer);
+		buffer.append(':');
+		appendPadded(millisOfDay / 1000 % 60, 2, buffer);
+
+		long millis = millisOfDay % 1000;
+		if (millis != 0) {
+			buffer.append('.');
+			//Trailing zeros are dropped, as Solr does
+			buffer.append((char) ('0' + millis / 100));
+			if (millis % 100 != 0) {
+				buffer.append((char) ('0' + millis / 10 % 10));
+				if (millis % 10 != 0) {
+					buffer.append((char) ('0' + millis % 10));
+				}
+			}
+		}
+		buffer.append('Z');
+	}
+}
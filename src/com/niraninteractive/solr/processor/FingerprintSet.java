@@ -0,0 +1,69 @@
+package com.niraninteractive.solr.processor;
+
+/**
+ * A set of 64-bit id fingerprints, as computed by
+ * {@link ShardKeyIndex#fingerprint(CharSequence, int, int)}, kept in one
+ * open-addressing <code>long[]</code> that doubles when half full. It holds
+ * the ids of a single request at eight to sixteen bytes each, without an
+ * object per id. It is not thread-safe.
+ *
+ * @author afajem
+ */
+final class FingerprintSet {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] slots = new long[INITIAL_CAPACITY];
+	private int size;
+
+
+	/**
+	 * Adds a fingerprint
+	 *
+	 * @param fingerprint a fingerprint, never 0
+	 * @return <code>false</code> if the set already held it
+	 */
+	boolean add(long fingerprint) {
+		if (size * 2 >= slots.length) {
+			grow();
+		}
+		return insert(slots, fingerprint);
+	}
+
+
+	/**
+	 * Returns the number of fingerprints in the set
+	 *
+	 * @return the set size
+	 */
+	int size() {
+		return size;
+	}
+
+
+	private boolean insert(long[] table, long fingerprint) {
+		int mask = table.length - 1;
+		for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+			if (table[slot] == fingerprint) {
+				return false;
+			}
+			if (table[slot] == 0) {
+				table[slot] = fingerprint;
+				size++;
+				return true;
+			}
+		}
+	}
+
+
+	private void grow() {
+		long[] previous = slots;
+		slots = new long[previous.length * 2];
+		size = 0;
+		for (long fingerprint : previous) {
+			if (fingerprint != 0) {
+				insert(slots, fingerprint);
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-memory sketch of the shard keys seen most often, used to spot a
+ * shard key whose documents are flooding one shard.
+ * <p>
+ * Occurrences are counted in a Count-Min sketch, striped by thread so that
+ * indexing threads mostly increment cache lines of their own. Shard keys
+ * whose estimated count, summed over the stripes, is high enough compete for
+ * a small table of candidates, in which a key may take any of a few slots
+ * and displaces the least frequent of them. Counting happens in windows of fixed length; when a window
+ * ends, the first thread to notice publishes the top keys of the window with
+ * their rates and starts the next window. No thread ever waits on a lock.
+ * <p>
+ * Counts are estimates: a Count-Min sketch may overcount, never undercount,
+ * and updates that race with the end of a window may be lost.
+ *
+ * @author afajem
+ */
+final class HeavyHitterSketch {
+
+	/** A shard key and its estimated ingest rate over one window */
+	static final class HotKey {
+		/** The shard key */
+		final String shardKey;
+		/** The estimated number of documents in the window */
+		final long count;
+		/** The estimated number of documents per second */
+		final double rate;
+
+		HotKey(String shardKey, long count, double rate) {
+			this.shardKey = shardKey;
+			this.count = count;
+			this.rate = rate;
+		}
+	}
+
+	/** A shard key competing for a place in the top keys */
+	private static final class Candidate {
+		final String shardKey;
+		final int hash;
+
+		Candidate(String shardKey, int hash) {
+			this.shardKey = shardKey;
+			this.hash = hash;
+		}
+	}
+
+	/** Number of Count-Min rows */
+	private static final int DEPTH = 4;
+	/** Number of independent copies of the sketch, a power of two */
+	private static final int STRIPES = 4;
+	/** Width of each Count-Min row */
+	private static final int WIDTH = 1024;
+	/** Number of consecutive candidate slots a shard key may take */
+	private static final int PROBES = 4;
+
+	private static final Comparator<HotKey> BY_COUNT_DESCENDING = new Comparator<HotKey>() {
+		public int compare(HotKey a, HotKey b) {
+			return a.count < b.count ? 1 : (a.count == b.count ? 0 : -1);
+		}
+	};
+
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * DEPTH * WIDTH);
+	private final AtomicReferenceArray<Candidate> candidates;
+	private final int candidateMask;
+	private final int topK;
+	private final long windowMillis;
+	private final AtomicLong windowStart;
+
+	private volatile List<HotKey> lastWindow = Collections.emptyList();
+
+
+	/**
+	 * Creates a sketch
+	 *
+	 * @param topK the number of top keys to report
+	 * @param windowMillis the length of a counting window
+	 */
+	HeavyHitterSketch(int topK, long windowMillis) {
+		this.topK = topK;
+		this.windowMillis = windowMillis;
+		int size = Integer.highestOneBit(Math.max(2, topK * 4 - 1)) << 1;
+		this.candidates = new AtomicReferenceArray<Candidate>(size);
+		this.candidateMask = size - 1;
+		this.windowStart = new AtomicLong(System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Counts one document of a shard key
+	 *
+	 * @param shardKey the canonical shard key
+	 * @param hash a well distributed hash of the shard key
+	 */
+	void add(String shardKey, int hash) {
+		rollWindow(System.currentTimeMillis());
+
+		int base = (StripedCounter.stripe() & (STRIPES - 1)) * DEPTH * WIDTH;
+		for (int row = 0; row < DEPTH; row++) {
+			counts.incrementAndGet(base + row * WIDTH + column(hash, row));
+		}
+
+		//Keep the key if it is tracked, else take a free slot or displace the least frequent key
+		int weakestSlot = -1;
+		Candidate weakest = null;
+		long weakestEstimate = Long.MAX_VALUE;
+		for (int probe = 0; probe < PROBES; probe++) {
+			int slot = (hash + probe) & candidateMask;
+			Candidate candidate = candidates.get(slot);
+			if (candidate == null) {
+				if (candidates.compareAndSet(slot, null, new Candidate(shardKey, hash))) {
+					return;
+				}
+				candidate = candidates.get(slot);
+				if (candidate == null) {
+					continue;
+				}
+			}
+			if (candidate.hash == hash && candidate.shardKey.equals(shardKey)) {
+				return;
+			}
+			long candidateEstimate = estimate(candidate.hash);
+			if (candidateEstimate < weakestEstimate) {
+				weakestSlot = slot;
+				weakest = candidate;
+				weakestEstimate = candidateEstimate;
+			}
+		}
+		if (weakest != null && estimate(hash) > weakestEstimate) {
+			candidates.compareAndSet(weakestSlot, weakest, new Candidate(shardKey, hash));
+		}
+	}
+
+
+	/**
+	 * Returns the top keys of the last completed window, highest rate first
+	 *
+	 * @return the hot keys, at most as many as configured
+	 */
+	List<HotKey> getHotKeys() {
+		rollWindow(System.currentTimeMillis());
+		return lastWindow;
+	}
+
+
+	/**
+	 * Returns the number of candidate slots in use
+	 *
+	 * @return the number of tracked shard keys
+	 */
+	int getTrackedKeys() {
+		int tracked = 0;
+		for (int i = 0; i < candidates.length(); i++) {
+			if (candidates.get(i) != null) {
+				tracked++;
+			}
+		}
+		return tracked;
+	}
+
+
+	/**
+	 * Returns the number of top keys reported
+	 *
+	 * @return the configured top K
+	 */
+	int getTopK() {
+		return topK;
+	}
+
+
+	/**
+	 * Returns the length of a counting window
+	 *
+	 * @return the window length in milliseconds
+	 */
+	long getWindowMillis() {
+		return windowMillis;
+	}
+
+
+	/**
+	 * Ends the current window if its time is up. Only the thread that
+	 * manages to move the window start publishes the results.
+	 */
+	private void rollWindow(long now) {
+		long start = windowStart.get();
+		if (now - start < windowMillis || !windowStart.compareAndSet(start, now)) {
+			return;
+		}
+
+		double seconds = Math.max(1, now - start) / 1000.0;
+		List<HotKey> hotKeys = new ArrayList<HotKey>();
+		//Threads racing for free slots may have added a key twice
+		Set<String> reported = new HashSet<String>();
+		for (int i = 0; i < candidates.length(); i++) {
+			Candidate candidate = candidates.getAndSet(i, null);
+			if (candidate != null && reported.add(candidate.shardKey)) {
+				long count = estimate(candidate.hash);
+				hotKeys.add(new HotKey(candidate.shardKey, count, count / seconds));
+			}
+		}
+		Collections.sort(hotKeys, BY_COUNT_DESCENDING);
+		if (hotKeys.size() > topK) {
+			hotKeys = new ArrayList<HotKey>(hotKeys.subList(0, topK));
+		}
+		lastWindow = Collections.unmodifiableList(hotKeys);
+
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+
+	/**
+	 * Estimates the count of a shard key across all stripes
+	 */
+	private long estimate(int hash) {
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			long count = 0;
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				count += counts.get(stripe * DEPTH * WIDTH + row * WIDTH + column(hash, row));
+			}
+			estimate = Math.min(estimate, count);
+		}
+		return estimate;
+	}
+
+
+	/**
+	 * Picks the column of a row, re-mixing the hash with a different seed per row
+	 */
+	private static int column(int hash, int row) {
+		int h = hash + row * 0x9E3779B9;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h & (WIDTH - 1);
+	}
+}
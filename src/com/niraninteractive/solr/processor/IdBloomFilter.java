@@ -0,0 +1,163 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A Bloom filter of the composite ids in an index, used to tell a document
+ * whose id has never been indexed from one that may overwrite another. The
+ * filter answers "definitely new" or "maybe seen": it may call a new id seen,
+ * never the other way round, as long as every indexed id was added to it.
+ * <p>
+ * Ids are hashed in their UTF-8 form, the bytes of their index terms, so the
+ * filter can be filled from the terms of the index as well as from incoming
+ * documents. Bits live in an <code>AtomicLongArray</code> and are set with
+ * compare-and-set, so indexing threads add ids concurrently without locks.
+ *
+ * @author afajem
+ */
+final class IdBloomFilter {
+
+	private static final double LN2 = Math.log(2);
+
+	private final AtomicLongArray words;
+	private final long bits;
+	private final int hashes;
+	private final long expectedIds;
+	private final StripedCounter ids = new StripedCounter();
+
+
+	/**
+	 * Creates a filter sized for a number of ids and a false positive rate
+	 *
+	 * @param expectedIds the number of ids the filter is sized for
+	 * @param falsePositiveRate the rate of new ids taken for seen ones once
+	 * 		the filter holds the expected number of ids
+	 */
+	IdBloomFilter(long expectedIds, double falsePositiveRate) {
+		this.expectedIds = Math.max(1, expectedIds);
+		long wordCount = (long) Math.ceil(
+				-this.expectedIds * Math.log(falsePositiveRate) / (LN2 * LN2) / 64);
+		this.words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, wordCount)));
+		this.bits = words.length() * 64L;
+		this.hashes = (int) Math.max(1, Math.round((double) bits / this.expectedIds * LN2));
+	}
+
+
+	/**
+	 * Adds an id. Threads adding the same id at once may each set some of
+	 * its bits and all get <code>true</code>, so callers that act on the
+	 * answer must not add the same id concurrently.
+	 *
+	 * @param id the UTF-8 bytes of the id
+	 * @return <code>true</code> if the id was definitely not in the filter
+	 */
+	boolean add(BytesRef id) {
+		long h1 = hash(id.bytes, id.offset, id.length);
+		long h2 = mix(h1 + 0x9E3779B97F4A7C15L) | 1;
+		boolean added = false;
+		long combined = h1;
+		for (int i = 0; i < hashes; i++, combined += h2) {
+			long bit = (combined >>> 1) % bits;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current = words.get(word);
+			while ((current & mask) == 0) {
+				if (words.compareAndSet(word, current, current | mask)) {
+					added = true;
+					break;
+				}
+				current = words.get(word);
+			}
+		}
+		if (added) {
+			ids.increment();
+		}
+		return added;
+	}
+
+
+	/**
+	 * Returns the number of ids the filter is sized for
+	 *
+	 * @return the expected id count
+	 */
+	long getExpectedIds() {
+		return expectedIds;
+	}
+
+
+	/**
+	 * Returns the number of ids added that were not already in the filter
+	 *
+	 * @return the distinct id count, as far as the filter can tell
+	 */
+	long getIds() {
+		return ids.get();
+	}
+
+
+	/**
+	 * Returns the size of the filter
+	 *
+	 * @return the number of bits
+	 */
+	long getBits() {
+		return bits;
+	}
+
+
+	/**
+	 * Returns the number of bits set per id
+	 *
+	 * @return the hash function count
+	 */
+	int getHashes() {
+		return hashes;
+	}
+
+
+	/**
+	 * Estimates the rate at which new ids are currently taken for seen ones
+	 *
+	 * @return the false positive rate for the ids held so far
+	 */
+	double getFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-hashes * (double) ids.get() / bits), hashes);
+	}
+
+
+	/**
+	 * Returns whether the filter holds more ids than it was sized for
+	 *
+	 * @return <code>true</code> once the false positive rate exceeds the target
+	 */
+	boolean isFull() {
+		return ids.get() > expectedIds;
+	}
+
+
+	/**
+	 * Hashes bytes with FNV-1a, finished by {@link #mix(long)}
+	 */
+	private static long hash(byte[] bytes, int offset, int length) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+
+	/**
+	 * The finalizer of MurmurHash3's 64-bit hash
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+}
@@ -0,0 +1,130 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * A histogram of durations that indexing threads can record into
+ * concurrently, without locks or allocation. Buckets are laid out the way
+ * HdrHistogram lays them out: each power of two nanoseconds is split into
+ * {@link #SUB_BUCKETS} linear sub-buckets, so any duration is counted with a
+ * relative error of at most 1/{@value #SUB_BUCKETS} while the whole range of
+ * a <code>long</code> fits in a few hundred counters. Counts are kept in one
+ * of several stripes picked by thread as in {@link StripedCounter}, so
+ * recording is a single uncontended increment. Reading sums the stripes and
+ * never blocks writers.
+ * <p>
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ *
+ * @author afajem
+ */
+final class LatencyHistogram {
+
+	/** Number of stripes, a power of two */
+	private static final int STRIPES = 8;
+	/** Number of bits of a duration kept below its highest one bit */
+	private static final int SUB_BUCKET_BITS = 3;
+	/** Number of linear sub-buckets per power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Number of buckets, enough for any non-negative <code>long</code> */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+	private final StripedCounter totalNanos = new StripedCounter();
+
+
+	/**
+	 * Records a duration
+	 *
+	 * @param nanos the duration in nanoseconds
+	 */
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.getAndIncrement((StripedCounter.stripe() & (STRIPES - 1)) * BUCKETS + bucket(nanos));
+		totalNanos.add(nanos);
+	}
+
+
+	/**
+	 * Returns the bucket counting a duration
+	 */
+	static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+
+	/**
+	 * Returns the largest duration counted by a bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+
+	/**
+	 * Returns the count of each bucket, summed over all stripes
+	 */
+	private long[] snapshot() {
+		long[] buckets = new long[BUCKETS];
+		for (int i = 0; i < counts.length(); i++) {
+			buckets[i % BUCKETS] += counts.get(i);
+		}
+		return buckets;
+	}
+
+
+	private static long percentile(long[] buckets, double percentile) {
+		long count = 0;
+		for (long bucketCount : buckets) {
+			count += bucketCount;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += buckets[bucket];
+			if (seen >= rank) {
+				return upperBound(bucket);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+
+	/**
+	 * Adds the sample count, mean and main percentiles, in microseconds, to
+	 * a list of statistics
+	 *
+	 * @param stats the statistics to add to
+	 * @param prefix the prefix of the statistic names
+	 */
+	void addTo(NamedList<Object> stats, String prefix) {
+		long[] buckets = snapshot();
+		long count = 0;
+		for (long bucketCount : buckets) {
+			count += bucketCount;
+		}
+		stats.add(prefix + "Samples", count);
+		stats.add(prefix + "MeanMicros", count == 0 ? 0.0 : totalNanos.get() / 1000.0 / count);
+		stats.add(prefix + "P50Micros", percentile(buckets, 50) / 1000.0);
+		stats.add(prefix + "P90Micros", percentile(buckets, 90) / 1000.0);
+		stats.add(prefix + "P99Micros", percentile(buckets, 99) / 1000.0);
+		stats.add(prefix + "P999Micros", percentile(buckets, 99.9) / 1000.0);
+		stats.add(prefix + "MaxMicros", percentile(buckets, 100) / 1000.0);
+	}
+}
@@ -0,0 +1,53 @@
+package com.niraninteractive.solr.processor;
+
+import org.apache.solr.common.util.Hash;
+
+/**
+ * Computes the parts of the 32-bit hash that Solr's <code>CompositeIdRouter</code>
+ * derives from a <code>&lt;shard_key&gt;!&lt;document_id&gt;</code> id, so that
+ * the share of the route hash taken from a shard key can be reported along
+ * with it. The Solr 4.3 router splits an id at its first <code>!</code> only:
+ * the upper bits come from the part before it, and the rest of the id,
+ * the second level of a two level shard key included, supplies the others.
+ *
+ * @author afajem
+ */
+final class RouteHash {
+
+	/** Bits of the route hash taken from the shard key by default */
+	static final int DEFAULT_SHARD_KEY_BITS = 16;
+
+
+	private RouteHash() {
+	}
+
+
+	/**
+	 * Computes the murmur3 hash of a range of characters, as
+	 * <code>CompositeIdRouter</code> hashes each part of an id.
+	 *
+	 * @param chars the characters
+	 * @param start the start of the range, inclusive
+	 * @param end the end of the range, exclusive
+	 * @return the murmur3 hash of the UTF-8 encoding of the range
+	 */
+	static int hash(CharSequence chars, int start, int end) {
+		return Hash.murmurhash3_x86_32(chars, start, end - start, 0);
+	}
+
+
+	/**
+	 * Computes the mask selecting the bits of the route hash taken from the
+	 * part of an id before its first <code>!</code>, the way
+	 * <code>CompositeIdRouter</code> does: the uppermost bits, as many as the
+	 * bit count. The rest of the id supplies the bits not covered by the mask.
+	 *
+	 * @param bits the number of bits taken from the first level, or
+	 * 		{@link ShardKeyBits#NONE} for the router default
+	 * @return the mask
+	 */
+	static int mask(int bits) {
+		int shardKeyBits = bits == ShardKeyBits.NONE ? DEFAULT_SHARD_KEY_BITS : bits;
+		return shardKeyBits == 0 ? 0 : -1 << (32 - shardKeyBits);
+	}
+}
@@ -0,0 +1,192 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.StrUtils;
+
+/**
+ * Immutable table of the number of route hash bits taken from the first level of
+ * a shard key, as written in the
+ * <code>&lt;shard_key&gt;/&lt;bits&gt;!&lt;document_id&gt;</code> form
+ * understood by <code>CompositeIdRouter</code>. The fewer bits taken from a
+ * shard key, the more shards its documents spread over: a key written with
+ * <code>n</code> bits covers 1/2<sup>n</sup> of the hash range, so
+ * <code>tenant/2!</code> spreads over a quarter of the shards and
+ * <code>tenant/0!</code> over all of them. The router's default of 16 bits
+ * keeps a key on one shard of any realistic collection.
+ * <p>
+ * The table holds a default bit count, plus overrides for individual first
+ * level values, read from lines of the form <code>shard_key=bits</code>.
+ * Blank lines and lines starting with <code>#</code> are ignored. Bit counts
+ * apply to the first level of a shard key only: Solr 4.3's router reads the
+ * id up to its first <code>!</code>, so a bit count on the second level would
+ * route nothing.
+ *
+ * @author afajem
+ */
+final class ShardKeyBits {
+
+	/** Value meaning that no bit count is written and the router default applies */
+	static final int NONE = -1;
+
+	/** The largest bit count the router takes from a shard key level */
+	static final int MAX_BITS = 16;
+
+	/** A table that never writes a bit count */
+	static final ShardKeyBits DISABLED = new ShardKeyBits(new int[0],
+			Collections.<String, Integer>emptyMap());
+
+	private final int[] defaultBits;
+	private final Map<String, Integer> bitsByShardKey;
+
+
+	private ShardKeyBits(int[] defaultBits, Map<String, Integer> bitsByShardKey) {
+		this.defaultBits = defaultBits;
+		this.bitsByShardKey = bitsByShardKey;
+	}
+
+
+	/**
+	 * Parses the default and the per shard key overrides.
+	 *
+	 * @param defaults the bit count of the first shard key level, or
+	 * 		<code>null</code>
+	 * @param lines the lines of the overrides file, or <code>null</code>
+	 * @return the table
+	 * @throws SolrException if a bit count is given for a later level
+	 */
+	static ShardKeyBits parse(String defaults, List<String> lines) {
+		int[] defaultBits = new int[0];
+		if (defaults != null) {
+			List<String> levels = StrUtils.splitSmart(defaults, ';');
+			for (int level = 1; level < levels.size(); level++) {
+				if (levels.get(level).trim().length() > 0) {
+					throw new SolrException(ErrorCode.SERVER_ERROR,
+						"Shard key bits apply to the first shard key level only, "
+							+ "since the router splits ids at their first separator: " + defaults);
+				}
+			}
+			if (!levels.isEmpty()) {
+				defaultBits = new int[] { parseConfiguredBits(levels.get(0).trim(), defaults) };
+			}
+		}
+
+		Map<String, Integer> bitsByShardKey = new HashMap<String, Integer>();
+		if (lines != null) {
+			for (String line : lines) {
+				String entry = line.trim();
+				if (entry.length() == 0 || entry.startsWith("#")) {
+					continue;
+				}
+				int equals = entry.lastIndexOf('=');
+				if (equals <= 0) {
+					throw new SolrException(ErrorCode.SERVER_ERROR,
+						"Shard key bits entries must be of the form shard_key=bits: " + line);
+				}
+				bitsByShardKey.put(entry.substring(0, equals).trim(),
+						parseConfiguredBits(entry.substring(equals + 1).trim(), line));
+			}
+		}
+		return new ShardKeyBits(defaultBits, Collections.unmodifiableMap(bitsByShardKey));
+	}
+
+
+	private static int parseConfiguredBits(String value, String source) {
+		int bits = value.length() == 0 ? NONE : parseBits(value, 0, value.length());
+		if (value.length() > 0 && bits == NONE) {
+			throw new SolrException(ErrorCode.SERVER_ERROR,
+				"Shard key bits must be between 0 and " + MAX_BITS + ": " + source);
+		}
+		return bits;
+	}
+
+
+	/**
+	 * Parses a bit count the way <code>CompositeIdRouter</code> does.
+	 *
+	 * @param chars the characters holding the bit count
+	 * @param start the start of the bit count, inclusive
+	 * @param end the end of the bit count, exclusive
+	 * @return the bit count, or {@link #NONE} if it is not a number from 0 to
+	 * 		{@link #MAX_BITS}
+	 */
+	static int parseBits(CharSequence chars, int start, int end) {
+		if (start >= end) {
+			return NONE;
+		}
+		int bits = 0;
+		for (int i = start; i < end; i++) {
+			char ch = chars.charAt(i);
+			if (ch < '0' || ch > '9') {
+				return NONE;
+			}
+			bits = bits * 10 + (ch - '0');
+			if (bits > MAX_BITS) {
+				return NONE;
+			}
+		}
+		return bits;
+	}
+
+
+	/**
+	 * Returns whether any shard key gets a bit count
+	 *
+	 * @return <code>true</code> unless every lookup returns {@link #NONE}
+	 */
+	boolean isEnabled() {
+		for (int bits : defaultBits) {
+			if (bits != NONE) {
+				return true;
+			}
+		}
+		return !bitsByShardKey.isEmpty();
+	}
+
+
+	/**
+	 * Returns the bit count of each level of a shard key
+	 *
+	 * @param levels the values of the shard key levels
+	 * @return the bit count of each level, {@link #NONE} where none is written
+	 */
+	int[] bitsFor(String[] levels) {
+		int[] bits = new int[levels.length];
+		for (int level = 0; level < levels.length; level++) {
+			bits[level] = level < defaultBits.length ? defaultBits[level] : NONE;
+		}
+		if (levels.length > 0) {
+			Integer override = bitsByShardKey.get(levels[0]);
+			if (override != null) {
+				bits[0] = override.intValue();
+			}
+		}
+		return bits;
+	}
+
+
+	/**
+	 * Returns the bit counts applied to shard key levels without an override
+	 *
+	 * @return a copy of the default bit count of each level
+	 */
+	int[] getDefaultBits() {
+		return Arrays.copyOf(defaultBits, defaultBits.length);
+	}
+
+
+	/**
+	 * Returns the overrides of the first level's bit count
+	 *
+	 * @return an unmodifiable map of first level value to bit count
+	 */
+	Map<String, Integer> getOverrides() {
+		return bitsByShardKey;
+	}
+}
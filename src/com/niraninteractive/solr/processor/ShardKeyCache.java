@@ -0,0 +1,245 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free cache from the characters of a shard key to its
+ * canonical <code>String</code>, the form in which it is written into ids and
+ * its share of the route hash. Prefix fields usually have few distinct values,
+ * so most documents find their shard key here after a single probe, without
+ * building a string or hashing the key.
+ * <p>
+ * The cache is a fixed table of slots. A key may live in one of two adjacent
+ * slots; when both are taken the key being added replaces the entry in its
+ * first slot, which bounds the cache by its size without any locking or
+ * bookkeeping.
+ *
+ * @author afajem
+ */
+final class ShardKeyCache {
+
+	/** An immutable cache entry */
+	static final class Entry {
+		/** The canonical shard key, with its levels separated by <code>!</code> */
+		final String shardKey;
+		/** The shard key as written into ids, including any bit counts */
+		final String routeKey;
+		/** The bits of the route hash contributed by the first level of the shard key */
+		final int shardKeyHash;
+		/** The hash of the characters of the shard key, used to index the table */
+		final int charsHash;
+
+		Entry(String shardKey, String routeKey, int shardKeyHash, int charsHash) {
+			this.shardKey = shardKey;
+			this.routeKey = routeKey;
+			this.shardKeyHash = shardKeyHash;
+			this.charsHash = charsHash;
+		}
+
+		boolean matches(CharSequence chars, int length, int charsHash) {
+			if (this.charsHash != charsHash || shardKey.length() != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (shardKey.charAt(i) != chars.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final ShardKeyBits shardKeyBits;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+
+
+	/**
+	 * Creates a cache holding up to (about) the given number of shard keys
+	 *
+	 * @param maxSize the maximum number of entries, rounded up to a power of two
+	 * @param shardKeyBits the bit counts applied to new entries
+	 */
+	ShardKeyCache(int maxSize, ShardKeyBits shardKeyBits) {
+		this.shardKeyBits = shardKeyBits;
+		int size = Integer.highestOneBit(Math.max(2, maxSize - 1)) << 1;
+		this.slots = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+	}
+
+
+	/**
+	 * Returns the entry for the shard key held in the first
+	 * <code>length</code> characters of <code>chars</code>, creating it on a
+	 * miss.
+	 *
+	 * @param chars the characters holding the shard key
+	 * @param length the length of the shard key
+	 * @param levelEnds the end of each level of the shard key within
+	 * 		<code>chars</code>; only read on a miss
+	 * @param levels the number of levels
+	 * @return the cache entry for the shard key
+	 */
+	Entry get(CharSequence chars, int length, int[] levelEnds, int levels) {
+		int charsHash = charsHash(chars, length);
+		int index = charsHash & mask;
+
+		Entry entry = slots.get(index);
+		if (entry != null && entry.matches(chars, length, charsHash)) {
+			hits.increment();
+			return entry;
+		}
+		Entry neighbour = slots.get(index ^ 1);
+		if (neighbour != null && neighbour.matches(chars, length, charsHash)) {
+			hits.increment();
+			return neighbour;
+		}
+
+		misses.increment();
+		Entry created = newEntry(chars, length, levelEnds, levels, charsHash, shardKeyBits);
+		if (entry == null || neighbour != null) {
+			slots.set(index, created);
+		}
+		else {
+			slots.set(index ^ 1, created);
+		}
+		return created;
+	}
+
+
+	/**
+	 * Returns the entry for a shard key if it is cached, without counting a
+	 * hit or a miss
+	 *
+	 * @param chars the characters holding the shard key
+	 * @param length the length of the shard key
+	 * @return the cache entry, or <code>null</code> if the shard key is not cached
+	 */
+	Entry peek(CharSequence chars, int length) {
+		int charsHash = charsHash(chars, length);
+		int index = charsHash & mask;
+		Entry entry = slots.get(index);
+		if (entry != null && entry.matches(chars, length, charsHash)) {
+			return entry;
+		}
+		entry = slots.get(index ^ 1);
+		return entry != null && entry.matches(chars, length, charsHash) ? entry : null;
+	}
+
+
+	/**
+	 * Creates an entry without going through a cache
+	 *
+	 * @param chars the characters holding the shard key
+	 * @param length the length of the shard key
+	 * @param levelEnds the end of each level of the shard key within <code>chars</code>
+	 * @param levels the number of levels
+	 * @param shardKeyBits the bit counts to apply
+	 * @return a new entry for the shard key
+	 */
+	static Entry newEntry(CharSequence chars, int length, int[] levelEnds, int levels,
+			ShardKeyBits shardKeyBits) {
+		return newEntry(chars, length, levelEnds, levels,
+				charsHash(chars, length), shardKeyBits);
+	}
+
+
+	private static Entry newEntry(CharSequence chars, int length, int[] levelEnds,
+			int levels, int charsHash, ShardKeyBits shardKeyBits) {
+		String shardKey = chars.subSequence(0, length).toString();
+		String[] parts = new String[levels];
+		int start = 0;
+		for (int level = 0; level < levels; level++) {
+			parts[level] = shardKey.substring(start, levelEnds[level]);
+			start = levelEnds[level] + 1;
+		}
+
+		int[] bits = shardKeyBits.bitsFor(parts);
+		//Only the first level routes; the router hashes the rest with the document id
+		int shardKeyHash = RouteHash.hash(parts[0], 0, parts[0].length()) & RouteHash.mask(bits[0]);
+
+		StringBuilder routeKey = new StringBuilder(length + 4 * levels);
+		for (int level = 0; level < levels; level++) {
+			if (level > 0) {
+				routeKey.append(CompositeIdUpdateProcessorFactory.SHARD_KEY_SEPARATOR);
+			}
+			routeKey.append(parts[level]);
+			if (bits[level] != ShardKeyBits.NONE) {
+				routeKey.append(CompositeIdUpdateProcessorFactory.SHARD_KEY_BITS_SEPARATOR).append(bits[level]);
+			}
+		}
+
+		String route = routeKey.length() == length ? shardKey : routeKey.toString();
+		return new Entry(shardKey, route, shardKeyHash, charsHash);
+	}
+
+
+	/**
+	 * Returns the number of lookups answered from the cache
+	 *
+	 * @return the hit count
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+
+	/**
+	 * Returns the number of lookups that had to create an entry
+	 *
+	 * @return the miss count
+	 */
+	long getMisses() {
+		return misses.get();
+	}
+
+
+	/**
+	 * Returns the maximum number of entries the cache holds
+	 *
+	 * @return the number of slots
+	 */
+	int getMaxSize() {
+		return slots.length();
+	}
+
+
+	/**
+	 * Returns the number of slots currently holding an entry
+	 *
+	 * @return the number of entries
+	 */
+	int size() {
+		int size = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+
+	/**
+	 * Removes all entries
+	 */
+	void clear() {
+		for (int i = 0; i < slots.length(); i++) {
+			slots.set(i, null);
+		}
+	}
+
+
+	private static int charsHash(CharSequence chars, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + chars.charAt(i);
+		}
+		//Spread the high bits down, as HashMap does
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+}
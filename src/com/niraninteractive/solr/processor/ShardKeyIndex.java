@@ -0,0 +1,810 @@
+package com.niraninteractive.solr.processor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent index from document id to the shard key it was last indexed
+ * under, kept outside the Java heap in a memory-mapped file. It lets a delete
+ * or an atomic update that only knows the raw document id find the composite
+ * id of the document without a search.
+ * <p>
+ * Shard keys are kept in a dictionary, in the form written into ids, and
+ * numbered in the order they are first seen. The dictionary is an append-only
+ * file of length-prefixed records; a record cut short by a crash is dropped
+ * when the file is read back. Document ids are kept as 64-bit fingerprints in
+ * an open-addressing hash table of fixed-size slots, mapped in chunks so it can
+ * grow past 2 GB. Each slot holds a fingerprint, a dictionary ordinal and a
+ * check value written before the fingerprint. The check covers the hash of the
+ * shard key as well, so a slot torn by a crash or read while it is being
+ * written, or one whose ordinal now names another shard key because dictionary
+ * records were lost in a crash, is treated as absent. Opening the index maps
+ * the table without reading it, whatever its size.
+ * <p>
+ * Writers are serialized on the index, but a write that would store what a
+ * slot already holds, as when a document is indexed again under the same
+ * shard key, is skipped without taking the lock; lookups take no lock. Once the
+ * table is too full, or holds too many removed entries, a background thread
+ * copies the live entries into a new, larger table file. Writes made meanwhile
+ * go both to the old table and to a journal that is replayed into the new table
+ * before it replaces the old one. A compaction that fails is tried again a
+ * while later.
+ * <p>
+ * Lookups may miss: a lookup racing a write, or an entry written since the last
+ * {@link #sync()} when the machine goes down. A shard key returned is the one
+ * the document id was last recorded under on this node, which is only right
+ * while every add of the document goes through this node; it may also belong to
+ * another document id with the same 64-bit fingerprint. A wrong shard key is
+ * not harmless: a delete or atomic update sent to the composite id built from it
+ * deletes or partially updates another document if one has that id.
+ *
+ * @author afajem
+ */
+final class ShardKeyIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(ShardKeyIndex.class);
+
+	/** The file holding the shard key dictionary */
+	private static final String DICTIONARY_FILE = "shard-keys.dat";
+	/** The prefix and suffix of table file names, which carry the table generation */
+	private static final String TABLE_PREFIX = "table-";
+	private static final String TABLE_SUFFIX = ".idx";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** The load above which a compaction starts */
+	private static final double COMPACTION_LOAD = 0.6;
+	/** The load above which a table takes no more new entries */
+	private static final double MAX_LOAD = 0.9;
+	/** The share of removed entries above which a compaction starts */
+	private static final double COMPACTION_REMOVED = 0.25;
+	/** The time after a failed compaction before another one is tried */
+	private static final long COMPACTION_RETRY_MILLIS = 60 * 1000L;
+
+	/** The ordinal of a removed entry */
+	private static final int REMOVED = -1;
+	/** The slot contents returned for a document id without a slot */
+	private static final long ABSENT_SLOT = Long.MIN_VALUE;
+
+	/**
+	 * A table of slots in a memory-mapped file. The file starts with a header
+	 * of four longs: a magic number, the capacity, the number of slots in use
+	 * and the number of removed entries.
+	 */
+	private static final class Table {
+
+		private static final long MAGIC = 0x53484b4944583031L;
+		private static final int HEADER_BYTES = 32;
+		private static final int USED_OFFSET = 16;
+		private static final int REMOVED_OFFSET = 24;
+		/** Bytes per slot: fingerprint, ordinal and check value */
+		private static final int SLOT_BYTES = 16;
+		/** Bytes per mapped chunk, a multiple of the slot size */
+		private static final int CHUNK_SHIFT = 30;
+		private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+		final File file;
+		final long capacity;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer[] chunks;
+		private final long mask;
+		long used;
+		long removed;
+
+		private Table(File file, RandomAccessFile raf, long capacity) throws IOException {
+			this.file = file;
+			this.raf = raf;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			long size = HEADER_BYTES + capacity * SLOT_BYTES;
+			FileChannel channel = raf.getChannel();
+			chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT)];
+			for (int i = 0; i < chunks.length; i++) {
+				long start = (long) i << CHUNK_SHIFT;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+						Math.min(1L << CHUNK_SHIFT, size - start));
+			}
+		}
+
+		static Table create(File file, long capacity) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(HEADER_BYTES + capacity * SLOT_BYTES);
+				Table table = new Table(file, raf, capacity);
+				table.putLong(0, MAGIC);
+				table.putLong(8, capacity);
+				return table;
+			}
+			catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		static Table open(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() < HEADER_BYTES || raf.readLong() != MAGIC) {
+					throw new IOException("Not a shard key index table: " + file);
+				}
+				long capacity = raf.readLong();
+				if (Long.bitCount(capacity) != 1
+						|| raf.length() != HEADER_BYTES + capacity * SLOT_BYTES) {
+					throw new IOException("Truncated shard key index table: " + file);
+				}
+				Table table = new Table(file, raf, capacity);
+				table.used = table.getLong(USED_OFFSET);
+				table.removed = table.getLong(REMOVED_OFFSET);
+				return table;
+			}
+			catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		private long getLong(long offset) {
+			return chunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+		}
+
+		private void putLong(long offset, long value) {
+			chunks[(int) (offset >>> CHUNK_SHIFT)].putLong((int) (offset & CHUNK_MASK), value);
+		}
+
+		private int getInt(long offset) {
+			return chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+		}
+
+		private void putInt(long offset, int value) {
+			chunks[(int) (offset >>> CHUNK_SHIFT)].putInt((int) (offset & CHUNK_MASK), value);
+		}
+
+		private static long offset(long slot) {
+			return HEADER_BYTES + slot * SLOT_BYTES;
+		}
+
+		/**
+		 * Returns the ordinal and check value stored for a fingerprint, the
+		 * ordinal in the upper half, or {@link ShardKeyIndex#ABSENT_SLOT} if
+		 * the fingerprint has no slot
+		 */
+		long get(long fingerprint) {
+			long slot = fingerprint & mask;
+			for (long probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+				long offset = offset(slot);
+				long stored = getLong(offset);
+				if (stored == 0) {
+					return ABSENT_SLOT;
+				}
+				if (stored == fingerprint) {
+					return ((long) getInt(offset + 8) << 32) | (getInt(offset + 12) & 0xFFFFFFFFL);
+				}
+			}
+			return ABSENT_SLOT;
+		}
+
+		/**
+		 * Stores the ordinal of a fingerprint with its check value, reusing its
+		 * slot if it has one. Removing an absent fingerprint takes no slot.
+		 *
+		 * @return <code>false</code> if a new slot was needed and the table is full
+		 */
+		boolean put(long fingerprint, int ordinal, int check) {
+			long slot = fingerprint & mask;
+			for (long probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+				long offset = offset(slot);
+				long stored = getLong(offset);
+				if (stored == fingerprint) {
+					int previous = getInt(offset + 8);
+					putInt(offset + 8, ordinal);
+					putInt(offset + 12, check);
+					if (previous == REMOVED && ordinal != REMOVED) {
+						setRemoved(removed - 1);
+					}
+					else if (previous != REMOVED && ordinal == REMOVED) {
+						setRemoved(removed + 1);
+					}
+					return true;
+				}
+				if (stored == 0) {
+					if (ordinal == REMOVED) {
+						return true;
+					}
+					if (used >= capacity * MAX_LOAD) {
+						return false;
+					}
+					//The fingerprint goes last so the slot is never seen half written
+					putInt(offset + 8, ordinal);
+					putInt(offset + 12, check);
+					putLong(offset, fingerprint);
+					used++;
+					putLong(USED_OFFSET, used);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void setRemoved(long removed) {
+			this.removed = removed;
+			putLong(REMOVED_OFFSET, removed);
+		}
+
+		/**
+		 * Copies the entries of this table that are not removed into another,
+		 * with their check values. Entries that fail their check are left to
+		 * fail it in the other table too.
+		 */
+		void copyTo(Table target) {
+			for (long slot = 0; slot < capacity; slot++) {
+				long offset = offset(slot);
+				long fingerprint = getLong(offset);
+				if (fingerprint != 0) {
+					int ordinal = getInt(offset + 8);
+					if (ordinal != REMOVED) {
+						target.put(fingerprint, ordinal, getInt(offset + 12));
+					}
+				}
+			}
+		}
+
+		void force() {
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		}
+
+		/**
+		 * Closes the file. The mappings are released when they are collected.
+		 */
+		void close() {
+			try {
+				raf.close();
+			}
+			catch (IOException e) {
+				log.warn("Unable to close shard key index table " + file, e);
+			}
+		}
+	}
+
+	private final File directory;
+	private final long initialCapacity;
+
+	/** The ordinal of each shard key */
+	private final Map<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+	/** The shard key of each ordinal, grown by doubling; written under <code>this</code> */
+	private volatile AtomicReferenceArray<String> shardKeys = new AtomicReferenceArray<String>(64);
+	/** The number of shard keys, guarded by <code>this</code> */
+	private int shardKeyCount;
+	/** The dictionary file, open for appending, guarded by <code>this</code> */
+	private DataOutputStream dictionary;
+	/** The stream under {@link #dictionary}, through which it is synced */
+	private FileOutputStream dictionaryFile;
+
+	/** The current table; replaced under <code>this</code> */
+	private volatile Table table;
+	/** The generation of the current table, guarded by <code>this</code> */
+	private long generation;
+	/** Writes made during a compaction, as {@link Table#get(long)} returns them, or <code>null</code> if none is running */
+	private volatile Map<Long, Long> journal;
+	/** The time before which no compaction starts, after a failed one; guarded by <code>this</code> */
+	private long compactionRetryMillis;
+	private boolean closed;
+
+	private final StripedCounter compactions = new StripedCounter();
+	private final StripedCounter compactionFailures = new StripedCounter();
+	private final StripedCounter droppedEntries = new StripedCounter();
+
+
+	private ShardKeyIndex(File directory, long initialCapacity) {
+		this.directory = directory;
+		this.initialCapacity = initialCapacity;
+	}
+
+
+	/**
+	 * Opens the index kept in a directory, creating it if there is none
+	 *
+	 * @param directory the directory holding the index files
+	 * @param initialCapacity the number of slots of a new table, rounded up
+	 * 		to a power of two
+	 * @return the open index
+	 * @throws IOException if the index cannot be read or created
+	 */
+	static ShardKeyIndex open(File directory, long initialCapacity) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		ShardKeyIndex index = new ShardKeyIndex(directory, powerOfTwo(initialCapacity));
+		index.loadDictionary();
+		index.loadTable();
+		return index;
+	}
+
+
+	/**
+	 * Reads the dictionary, dropping a record cut short by a crash, and
+	 * opens it for appending.
+	 */
+	private synchronized void loadDictionary() throws IOException {
+		File file = new File(directory, DICTIONARY_FILE);
+		long complete = 0;
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					String shardKey = in.readUTF();
+					complete += 2 + utfLength(shardKey);
+					addShardKey(shardKey);
+				}
+			}
+			catch (EOFException e) {
+				//End of the dictionary, or of its last complete record
+			}
+			finally {
+				in.close();
+			}
+			if (complete != file.length()) {
+				log.warn("Dropping an incomplete record at the end of {}", file);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(complete);
+				}
+				finally {
+					raf.close();
+				}
+			}
+		}
+		dictionaryFile = new FileOutputStream(file, true);
+		dictionary = new DataOutputStream(new BufferedOutputStream(dictionaryFile));
+	}
+
+
+	/**
+	 * Maps the table of the latest generation and deletes the leftovers of
+	 * earlier generations and of an interrupted compaction.
+	 */
+	private synchronized void loadTable() throws IOException {
+		File latest = null;
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			long fileGeneration = generationOf(file.getName());
+			if (fileGeneration > generation) {
+				generation = fileGeneration;
+				latest = file;
+			}
+		}
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.startsWith(TABLE_PREFIX) && !file.equals(latest) && !file.delete()) {
+				log.warn("Unable to delete stale shard key index table {}", file);
+			}
+		}
+		if (latest == null) {
+			generation = 1;
+			table = Table.create(tableFile(generation, TABLE_SUFFIX), initialCapacity);
+		}
+		else {
+			table = Table.open(latest);
+		}
+	}
+
+
+	/**
+	 * Records the shard key a document id was indexed under
+	 *
+	 * @param id the composite id of the document
+	 * @param documentIdStart the start of the document id within the composite id
+	 * @param shardKey the shard key, as written into the composite id
+	 */
+	void put(CharSequence id, int documentIdStart, String shardKey) {
+		Integer ordinal = ordinals.get(shardKey);
+		if (ordinal == null) {
+			ordinal = newOrdinal(shardKey);
+			if (ordinal == null) {
+				return;
+			}
+		}
+		long fingerprint = fingerprint(id, documentIdStart, id.length());
+		int check = check(fingerprint, ordinal.intValue(), shardKey);
+		if (stored(fingerprint) != (((long) ordinal.intValue() << 32) | (check & 0xFFFFFFFFL))) {
+			write(fingerprint, ordinal.intValue(), check);
+		}
+	}
+
+
+	/**
+	 * Forgets the shard key of a document id
+	 *
+	 * @param documentId the raw document id
+	 */
+	void remove(CharSequence documentId) {
+		long fingerprint = fingerprint(documentId, 0, documentId.length());
+		long stored = stored(fingerprint);
+		if (stored != ABSENT_SLOT && (int) (stored >>> 32) != REMOVED) {
+			write(fingerprint, REMOVED, check(fingerprint, REMOVED, null));
+		}
+	}
+
+
+	/**
+	 * Returns the shard key a document id was last indexed under
+	 *
+	 * @param documentId the raw document id
+	 * @return the shard key as written into ids, or <code>null</code> if it is not known
+	 */
+	String get(CharSequence documentId) {
+		long fingerprint = fingerprint(documentId, 0, documentId.length());
+		long stored = stored(fingerprint);
+		if (stored == ABSENT_SLOT) {
+			return null;
+		}
+		int ordinal = (int) (stored >>> 32);
+		AtomicReferenceArray<String> keys = shardKeys;
+		//The ordinal may be past the dictionary if its record was lost in a crash
+		if (ordinal < 0 || ordinal >= keys.length()) {
+			return null;
+		}
+		String shardKey = keys.get(ordinal);
+		return shardKey != null && (int) stored == check(fingerprint, ordinal, shardKey) ? shardKey : null;
+	}
+
+
+	/**
+	 * Returns the ordinal and check value last written for a fingerprint, as
+	 * {@link Table#get(long)} does
+	 */
+	private long stored(long fingerprint) {
+		Map<Long, Long> pending = journal;
+		Long journaled = pending == null ? null : pending.get(fingerprint);
+		return journaled != null ? journaled.longValue() : table.get(fingerprint);
+	}
+
+
+	private synchronized void write(long fingerprint, int ordinal, int check) {
+		if (closed) {
+			return;
+		}
+		Map<Long, Long> pending = journal;
+		if (pending != null) {
+			pending.put(fingerprint, ((long) ordinal << 32) | (check & 0xFFFFFFFFL));
+		}
+		if (!table.put(fingerprint, ordinal, check) && pending == null) {
+			droppedEntries.increment();
+		}
+		if (pending == null
+				&& (table.used > table.capacity * COMPACTION_LOAD
+						|| table.removed > table.used * COMPACTION_REMOVED
+								&& table.used > initialCapacity * COMPACTION_LOAD)
+				&& (compactionRetryMillis == 0 || System.currentTimeMillis() >= compactionRetryMillis)) {
+			startCompaction();
+		}
+	}
+
+
+	private synchronized Integer newOrdinal(String shardKey) {
+		Integer ordinal = ordinals.get(shardKey);
+		if (ordinal != null) {
+			return ordinal;
+		}
+		if (closed || utfLength(shardKey) > 0xFFFF) {
+			return null;
+		}
+		try {
+			dictionary.writeUTF(shardKey);
+			dictionary.flush();
+		}
+		catch (IOException e) {
+			log.error("Unable to add shard key " + shardKey + " to " + directory, e);
+			return null;
+		}
+		return addShardKey(shardKey);
+	}
+
+
+	private Integer addShardKey(String shardKey) {
+		AtomicReferenceArray<String> keys = shardKeys;
+		if (shardKeyCount == keys.length()) {
+			AtomicReferenceArray<String> grown = new AtomicReferenceArray<String>(keys.length() * 2);
+			for (int i = 0; i < keys.length(); i++) {
+				grown.set(i, keys.get(i));
+			}
+			shardKeys = keys = grown;
+		}
+		Integer ordinal = Integer.valueOf(shardKeyCount++);
+		keys.set(ordinal.intValue(), shardKey);
+		ordinals.put(shardKey, ordinal);
+		return ordinal;
+	}
+
+
+	/**
+	 * Starts copying the live entries into a new table on a background thread
+	 */
+	private void startCompaction() {
+		journal = new ConcurrentHashMap<Long, Long>();
+		final Table source = table;
+		final long target = generation + 1;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				compact(source, target);
+			}
+		}, "ShardKeyIndex compaction " + directory.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	private void compact(Table source, long targetGeneration) {
+		File temp = tableFile(targetGeneration, TEMP_SUFFIX);
+		Table target = null;
+		try {
+			long capacity;
+			synchronized (this) {
+				capacity = powerOfTwo(Math.max(initialCapacity, (source.used - source.removed) * 4));
+			}
+			boolean swapped = false;
+			while (!swapped) {
+				target = Table.create(temp, capacity);
+				source.copyTo(target);
+				synchronized (this) {
+					if (closed) {
+						throw new IOException("Index closed");
+					}
+					long needed = target.used + journal.size();
+					if (needed > target.capacity * COMPACTION_LOAD) {
+						//Too many writes came in meanwhile for the new table to take them all
+						capacity = powerOfTwo(needed * 4);
+					}
+					else {
+						for (Map.Entry<Long, Long> write : journal.entrySet()) {
+							long stored = write.getValue().longValue();
+							target.put(write.getKey().longValue(), (int) (stored >>> 32), (int) stored);
+						}
+						target.force();
+						File file = tableFile(targetGeneration, TABLE_SUFFIX);
+						if (!temp.renameTo(file)) {
+							throw new IOException("Unable to rename " + temp);
+						}
+						target.close();
+						table = Table.open(file);
+						generation = targetGeneration;
+						journal = null;
+						compactionRetryMillis = 0;
+						swapped = true;
+					}
+				}
+				if (!swapped) {
+					target.close();
+					target = null;
+					if (!temp.delete()) {
+						throw new IOException("Unable to delete " + temp);
+					}
+				}
+			}
+			compactions.increment();
+			source.force();
+			source.close();
+			if (!source.file.delete()) {
+				log.warn("Unable to delete compacted shard key index table {}", source.file);
+			}
+			log.info("Compacted shard key index {} to {} slots", directory, table.capacity);
+		}
+		catch (IOException e) {
+			log.error("Unable to compact shard key index " + directory + ", trying again in "
+					+ COMPACTION_RETRY_MILLIS / 1000 + " s", e);
+			compactionFailures.increment();
+			synchronized (this) {
+				//The journaled writes are all in the source table unless it was full
+				journal = null;
+				compactionRetryMillis = System.currentTimeMillis() + COMPACTION_RETRY_MILLIS;
+			}
+			if (target != null) {
+				target.close();
+			}
+			temp.delete();
+		}
+	}
+
+
+	/**
+	 * Writes all changes through to disk, the dictionary before the table so
+	 * that the table never points at shard keys the disk does not hold
+	 *
+	 * @throws IOException if the dictionary cannot be synced
+	 */
+	synchronized void sync() throws IOException {
+		if (!closed) {
+			syncDictionary();
+			table.force();
+		}
+	}
+
+
+	private void syncDictionary() throws IOException {
+		dictionary.flush();
+		dictionaryFile.getFD().sync();
+	}
+
+
+	/**
+	 * Writes all changes through to disk and closes the files. A compaction
+	 * still running is abandoned.
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		try {
+			syncDictionary();
+			dictionary.close();
+		}
+		catch (IOException e) {
+			log.warn("Unable to close shard key dictionary in " + directory, e);
+		}
+		table.force();
+		table.close();
+		closed = true;
+	}
+
+
+	/**
+	 * Returns the number of document ids with a shard key
+	 *
+	 * @return the live entry count
+	 */
+	long size() {
+		Table current = table;
+		return current.used - current.removed;
+	}
+
+
+	/**
+	 * Returns the number of slots of the current table
+	 *
+	 * @return the table capacity
+	 */
+	long capacity() {
+		return table.capacity;
+	}
+
+
+	/**
+	 * Returns the number of distinct shard keys seen
+	 *
+	 * @return the dictionary size
+	 */
+	synchronized int shardKeyCount() {
+		return shardKeyCount;
+	}
+
+
+	/**
+	 * Returns the number of compactions completed since the index was opened
+	 *
+	 * @return the compaction count
+	 */
+	long getCompactions() {
+		return compactions.get();
+	}
+
+
+	/**
+	 * Returns the number of compactions that failed since the index was opened
+	 *
+	 * @return the failed compaction count
+	 */
+	long getCompactionFailures() {
+		return compactionFailures.get();
+	}
+
+
+	/**
+	 * Returns the number of entries left out because the table was full
+	 *
+	 * @return the dropped entry count
+	 */
+	long getDroppedEntries() {
+		return droppedEntries.get();
+	}
+
+
+	/**
+	 * Returns the directory holding the index files
+	 *
+	 * @return the index directory
+	 */
+	File getDirectory() {
+		return directory;
+	}
+
+
+	private File tableFile(long tableGeneration, String suffix) {
+		return new File(directory, TABLE_PREFIX + tableGeneration + suffix);
+	}
+
+
+	private static long generationOf(String name) {
+		if (!name.startsWith(TABLE_PREFIX) || !name.endsWith(TABLE_SUFFIX)) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(name.substring(TABLE_PREFIX.length(),
+					name.length() - TABLE_SUFFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+
+	/**
+	 * Returns the check value of a slot, which covers its fingerprint, its
+	 * ordinal and the shard key the ordinal stands for
+	 *
+	 * @param shardKey the shard key, or <code>null</code> for a removed entry
+	 */
+	private static int check(long fingerprint, int ordinal, String shardKey) {
+		long keyHash = shardKey == null ? 0 : shardKey.hashCode();
+		return (int) (mix(fingerprint ^ ordinal ^ (keyHash << 32)) >>> 32);
+	}
+
+
+	/**
+	 * Returns a 64-bit fingerprint of a range of characters, never 0
+	 */
+	static long fingerprint(CharSequence chars, int start, int end) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = start; i < end; i++) {
+			h = (h ^ chars.charAt(i)) * 0x100000001b3L;
+		}
+		h = mix(h);
+		return h == 0 ? 1 : h;
+	}
+
+
+	/**
+	 * The finalizer of MurmurHash3's 64-bit hash
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+
+	private static long powerOfTwo(long value) {
+		return value <= 2 ? 2 : Long.highestOneBit(value - 1) << 1;
+	}
+
+
+	/**
+	 * Returns the length of a string in modified UTF-8, as written by
+	 * {@link DataOutputStream#writeUTF(String)}
+	 */
+	private static int utfLength(String value) {
+		int length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			length += ch >= 0x0001 && ch <= 0x007F ? 1 : (ch > 0x07FF ? 3 : 2);
+		}
+		return length;
+	}
+}
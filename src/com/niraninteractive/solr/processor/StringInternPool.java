@@ -0,0 +1,128 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+/**
+ * A bounded, lock-free pool of canonical strings. Documents of a large update
+ * batch that carry equal prefix values can share one instance of each value
+ * instead of holding a copy each.
+ * <p>
+ * Unlike <code>String.intern()</code> the pool never grows past its size:
+ * each value maps to a single slot and replaces whatever value held it
+ * before. A replaced value is only dropped from the pool; documents still
+ * referring to it are unaffected.
+ *
+ * @author afajem
+ */
+final class StringInternPool {
+
+	private final AtomicReferenceArray<String> slots;
+	private final int mask;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+
+
+	/**
+	 * Creates a pool holding up to the given number of strings
+	 *
+	 * @param maxSize the maximum number of strings, rounded up to a power of two
+	 */
+	StringInternPool(int maxSize) {
+		int size = Integer.highestOneBit(Math.max(2, maxSize - 1)) << 1;
+		this.slots = new AtomicReferenceArray<String>(size);
+		this.mask = size - 1;
+	}
+
+
+	/**
+	 * Returns the canonical instance of a string, making it canonical if
+	 * no equal string is pooled.
+	 *
+	 * @param value the string
+	 * @return an equal string from the pool, or <code>value</code>
+	 */
+	String intern(String value) {
+		int h = value.hashCode();
+		int index = (h ^ (h >>> 16)) & mask;
+		String pooled = slots.get(index);
+		if (pooled != null && pooled.equals(value)) {
+			hits.increment();
+			return pooled;
+		}
+		misses.increment();
+		slots.set(index, value);
+		return value;
+	}
+
+
+	/**
+	 * Replaces a single string value of a document field by its canonical
+	 * instance. Fields holding several values, or a non-string value, are
+	 * left untouched.
+	 *
+	 * @param document the document
+	 * @param fieldName the name of the field
+	 */
+	void internFieldValue(SolrInputDocument document, String fieldName) {
+		SolrInputField field = document.getField(fieldName);
+		if (field != null) {
+			Object value = field.getValue();
+			if (value instanceof String) {
+				String canonical = intern((String) value);
+				if (canonical != value) {
+					field.setValue(canonical, field.getBoost());
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the number of strings the pool can hold
+	 *
+	 * @return the number of slots
+	 */
+	int getMaxSize() {
+		return slots.length();
+	}
+
+
+	/**
+	 * Returns the number of slots currently holding a string
+	 *
+	 * @return the number of pooled strings
+	 */
+	int size() {
+		int size = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+
+	/**
+	 * Returns the number of values that were already pooled
+	 *
+	 * @return the hit count
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+
+	/**
+	 * Returns the number of values that were added to the pool
+	 *
+	 * @return the miss count
+	 */
+	long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,68 @@
+package com.niraninteractive.solr.processor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that indexing threads can increment concurrently without
+ * contending on a single memory location. Each thread increments one of
+ * several cells, picked from its thread id, and cells are spaced a cache line
+ * apart. Reading the counter sums the cells and never blocks writers.
+ *
+ * @author afajem
+ */
+final class StripedCounter {
+
+	/** Number of cells, a power of two */
+	private static final int STRIPES = 16;
+	/** Distance between cells, in longs, so that each cell sits on its own cache line */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+
+	/**
+	 * Adds one to the counter
+	 */
+	void increment() {
+		cells.getAndIncrement(cell());
+	}
+
+
+	/**
+	 * Adds a value to the counter
+	 *
+	 * @param delta the value to add
+	 */
+	void add(long delta) {
+		cells.getAndAdd(cell(), delta);
+	}
+
+
+	/**
+	 * Returns the current value of the counter. Concurrent updates may or may
+	 * not be reflected.
+	 *
+	 * @return the sum of all cells
+	 */
+	long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+
+	/**
+	 * Returns the index of the calling thread's cell
+	 */
+	static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+	}
+
+
+	private static int cell() {
+		return stripe() * PADDING;
+	}
+}
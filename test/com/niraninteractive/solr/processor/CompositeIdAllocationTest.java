@@ -0,0 +1,177 @@
+package com.niraninteractive.solr.processor;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.junit.Test;
+
+/**
+ * Guards the allocation-free id building of
+ * {@link CompositeIdUpdateProcessorFactory.CompositeIdUpdateProcessor#processAdd}.
+ * The bytes the calling thread allocates per document are read from the
+ * JVM's <code>ThreadMXBean</code>. The budget is not a fixed number, which
+ * would depend on the JVM and its settings: a baseline doing only the work
+ * every add must do (the id string and the document field holding it, plus
+ * the term and its bytes when overwriting) is measured the same way, and
+ * the processor may allocate at most {@link #HEADROOM_BYTES} more. Both
+ * measurements are printed. The test is skipped on JVMs that do not report
+ * allocated bytes.
+ *
+ * @author afajem
+ */
+public class CompositeIdAllocationTest {
+
+	private static final String COMPOSITE_ID_FIELD = "compositeId";
+
+	/** Documents processed before measuring, so the hot path is compiled */
+	private static final int WARMUP_DOCS = 50000;
+	/** Documents processed per measurement */
+	private static final int MEASURED_DOCS = 10000;
+	/** Measurements made, the lowest of which is checked */
+	private static final int ROUNDS = 5;
+
+	/** The bytes per document the processor may allocate beyond the baseline, two small objects */
+	private static final long HEADROOM_BYTES = 32;
+
+
+	@Test
+	public void addAllocatesWithinBudget() throws IOException {
+		assertWithinBudget(false);
+	}
+
+
+	@Test
+	public void overwriteAllocatesWithinBudget() throws IOException {
+		assertWithinBudget(true);
+	}
+
+
+	private static void assertWithinBudget(boolean overwriteDupes) throws IOException {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		Map<String, SchemaField> schemaFields = new HashMap<String, SchemaField>();
+		schemaFields.put("type", new SchemaField("type", new StrField()));
+		schemaFields.put("region", new SchemaField("region", new StrField()));
+		schemaFields.put("id", new SchemaField("id", new StrField()));
+		NamedList<Object> args = new NamedList<Object>();
+		args.add("compositeIdField", COMPOSITE_ID_FIELD);
+		args.add("prefixFields", "type,region");
+		args.add("postfixField", "id");
+		args.add("overwriteDupes", overwriteDupes);
+		CompositeIdUpdateProcessorFactory factory = new CompositeIdUpdateProcessorFactory();
+		factory.init(args);
+		factory.informSchemaFields(schemaFields);
+
+		SolrInputDocument document = new SolrInputDocument();
+		document.setField("type", "book");
+		document.setField("region", "emea");
+		document.setField("id", "1001");
+
+		SolrQueryRequest request = new LocalSolrQueryRequest(null, new ModifiableSolrParams());
+		try {
+			UpdateRequestProcessor processor = factory.getInstance(request, new SolrQueryResponse(),
+				new TerminalProcessor());
+			AddUpdateCommand cmd = new AddUpdateCommand(request);
+			cmd.solrDoc = document;
+
+			addAll(processor, cmd, WARMUP_DOCS);
+			String id = (String) document.getFieldValue(COMPOSITE_ID_FIELD);
+			StringBuilder buffer = new StringBuilder();
+			setAll(cmd, id, buffer, overwriteDupes, WARMUP_DOCS);
+
+			long bytesPerDoc = Long.MAX_VALUE;
+			long baselineBytesPerDoc = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				long before = allocations.getThreadAllocatedBytes(threadId);
+				addAll(processor, cmd, MEASURED_DOCS);
+				long after = allocations.getThreadAllocatedBytes(threadId);
+				bytesPerDoc = Math.min(bytesPerDoc, (after - before) / MEASURED_DOCS);
+
+				before = allocations.getThreadAllocatedBytes(threadId);
+				setAll(cmd, id, buffer, overwriteDupes, MEASURED_DOCS);
+				after = allocations.getThreadAllocatedBytes(threadId);
+				baselineBytesPerDoc = Math.min(baselineBytesPerDoc, (after - before) / MEASURED_DOCS);
+			}
+			System.out.println("CompositeIdAllocationTest overwriteDupes=" + overwriteDupes 
+					+ ": processAdd " + bytesPerDoc + " bytes per document, baseline " 
+					+ baselineBytesPerDoc);
+			long maxBytesPerDoc = baselineBytesPerDoc + HEADROOM_BYTES;
+			assertTrue("processAdd allocated " + bytesPerDoc + " bytes per document, more than "
+					+ maxBytesPerDoc + " (baseline " + baselineBytesPerDoc + ")", 
+					bytesPerDoc <= maxBytesPerDoc);
+		}
+		finally {
+			request.close();
+		}
+	}
+
+
+	/**
+	 * Adds the document again and again, each time without the id the
+	 * previous add set, so every add builds and sets a new one
+	 */
+	private static void addAll(UpdateRequestProcessor processor, AddUpdateCommand cmd, int docs)
+			throws IOException {
+		for (int i = 0; i < docs; i++) {
+			cmd.solrDoc.removeField(COMPOSITE_ID_FIELD);
+			cmd.overwrite = true;
+			cmd.updateTerm = null;
+			processor.processAdd(cmd);
+		}
+	}
+
+
+	/**
+	 * Does the work every add must do, without the processor: copies the id
+	 * into a new string, sets it on the document and, when overwriting,
+	 * builds the term to overwrite by
+	 */
+	private static void setAll(AddUpdateCommand cmd, String id, StringBuilder buffer, boolean overwrite, 
+			int docs) {
+		for (int i = 0; i < docs; i++) {
+			cmd.solrDoc.removeField(COMPOSITE_ID_FIELD);
+			buffer.setLength(0);
+			buffer.append(id);
+			String copy = buffer.toString();
+			cmd.solrDoc.setField(COMPOSITE_ID_FIELD, copy);
+			cmd.updateTerm = overwrite 
+					? new Term(COMPOSITE_ID_FIELD, CompositeIdUpdateProcessorFactory.toUtf8(copy)) : null;
+		}
+	}
+
+
+	/**
+	 * End of the chain, doing nothing with the document
+	 */
+	private static final class TerminalProcessor extends UpdateRequestProcessor {
+
+		TerminalProcessor() {
+			super(null);
+		}
+
+		@Override
+		public void processAdd(AddUpdateCommand cmd) throws IOException {
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.niraninteractive.solr.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+/**
+ * Tests of the helpers of {@link CompositeIdUpdateProcessorFactory} that
+ * need no core.
+ *
+ * @author afajem
+ */
+public class CompositeIdUpdateProcessorFactoryTest {
+
+	private static final byte[] REPLACEMENT = { (byte) 0xEF, (byte) 0xBF, (byte) 0xBD };
+
+
+	@Test
+	public void toUtf8EncodesEveryLength() throws UnsupportedEncodingException {
+		assertUtf8("book!1001");
+		assertUtf8("caf\u00e9!\u00df");
+		assertUtf8("\u20ac\u4e2d!\uffee");
+		assertUtf8("");
+	}
+
+
+	@Test
+	public void toUtf8EncodesSurrogatePairs() throws UnsupportedEncodingException {
+		assertUtf8("\ud83d\ude00");
+		assertUtf8("key\ud83d\ude00!\ud800\udc00\udbff\udfff");
+	}
+
+
+	@Test
+	public void toUtf8ReplacesLoneSurrogates() {
+		//As Lucene does for index terms, so ids and their terms agree
+		assertArrayEquals(concat(bytes('a'), REPLACEMENT, bytes('b')), utf8("a\ud83db"));
+		assertArrayEquals(concat(bytes('a'), REPLACEMENT, bytes('b')), utf8("a\ude00b"));
+		assertArrayEquals(concat(bytes('a'), REPLACEMENT), utf8("a\ud83d"));
+		assertArrayEquals(concat(REPLACEMENT, REPLACEMENT), utf8("\ude00\ud83d"));
+	}
+
+
+	private static void assertUtf8(String id) throws UnsupportedEncodingException {
+		assertArrayEquals(id, id.getBytes("UTF-8"), utf8(id));
+	}
+
+
+	private static byte[] utf8(String id) {
+		BytesRef bytes = CompositeIdUpdateProcessorFactory.toUtf8(new StringBuilder(id));
+		byte[] copy = new byte[bytes.length];
+		System.arraycopy(bytes.bytes, bytes.offset, copy, 0, bytes.length);
+		return copy;
+	}
+
+
+	private static byte[] bytes(char ascii) {
+		return new byte[] { (byte) ascii };
+	}
+
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		byte[] all = new byte[length];
+		int upto = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, upto, part.length);
+			upto += part.length;
+		}
+		return all;
+	}
+}
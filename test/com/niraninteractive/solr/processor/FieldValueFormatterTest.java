@@ -0,0 +1,83 @@
+package com.niraninteractive.solr.processor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Tests of the value formatting of {@link FieldValueFormatter}, checked
+ * against <code>SimpleDateFormat</code> where it applies.
+ *
+ * @author afajem
+ */
+public class FieldValueFormatterTest {
+
+	@Test
+	public void appendDateWritesCanonicalForm() {
+		assertEquals("1970-01-01T00:00:00Z", date(0L));
+		assertEquals("1969-12-31T23:59:59.999Z", date(-1L));
+		assertEquals("2013-06-01T10:15:30.5Z", date(1370081730500L));
+		assertEquals("2013-06-01T10:15:30.05Z", date(1370081730050L));
+		assertEquals("2013-06-01T10:15:30.123Z", date(1370081730123L));
+		assertEquals("2000-02-29T12:00:00Z", date(951825600000L));
+		assertEquals("1900-03-01T00:00:00Z", date(-2203891200000L));
+		assertEquals("0001-01-01T00:00:00Z", date(-62135596800000L));
+	}
+
+
+	@Test
+	public void appendDateMatchesSimpleDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.ROOT);
+		GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+		//Proleptic Gregorian, as Solr writes dates
+		calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+		format.setCalendar(calendar);
+
+		Random random = new Random(42);
+		//Years 1 to 9999
+		long min = -62135596800000L;
+		long max = 253402300799999L;
+		for (int i = 0; i < 100000; i++) {
+			long millis = min + (long) (random.nextDouble() * (max - min));
+			assertEquals(String.valueOf(millis), canonical(format.format(new Date(millis))), date(millis));
+		}
+	}
+
+
+	@Test
+	public void dateFormatterFallsBackForOtherValues() {
+		StringBuilder buffer = new StringBuilder();
+		FieldValueFormatter.DATE.append("2013-06-01T10:15:30Z", buffer);
+		assertEquals("2013-06-01T10:15:30Z", buffer.toString());
+	}
+
+
+	private static String date(long millis) {
+		StringBuilder buffer = new StringBuilder();
+		FieldValueFormatter.appendDate(millis, buffer);
+		return buffer.toString();
+	}
+
+
+	/**
+	 * Drops trailing zeros of the milliseconds, and the point if none are
+	 * left, and adds the zone
+	 */
+	private static String canonical(String formatted) {
+		int end = formatted.length();
+		while (formatted.charAt(end - 1) == '0') {
+			end--;
+		}
+		if (formatted.charAt(end - 1) == '.') {
+			end--;
+		}
+		return formatted.substring(0, end) + "Z";
+	}
+}
@@ -0,0 +1,136 @@
+package com.niraninteractive.solr.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+/**
+ * Tests of {@link IdBloomFilter}, in particular that ids added by threads
+ * racing each other are never lost.
+ *
+ * @author afajem
+ */
+public class IdBloomFilterTest {
+
+	private static final int THREADS = 8;
+
+
+	@Test
+	public void addedIdIsNeverNewAgain() {
+		IdBloomFilter filter = new IdBloomFilter(1000, 0.01);
+		assertTrue(filter.add(id("book!1001")));
+		assertFalse(filter.add(id("book!1001")));
+		assertTrue(filter.add(id("book!1002")));
+		assertEquals(2, filter.getIds());
+	}
+
+
+	@Test
+	public void falsePositiveRateIsNearTarget() {
+		int ids = 100000;
+		IdBloomFilter filter = new IdBloomFilter(ids, 0.01);
+		for (int i = 0; i < ids; i++) {
+			filter.add(id("book!" + i));
+		}
+		assertFalse(filter.isFull());
+
+		//Each probe is added too, so the rate creeps up a little as they go
+		int probes = ids / 10;
+		int seen = 0;
+		for (int i = 0; i < probes; i++) {
+			if (!filter.add(id("movie!" + i))) {
+				seen++;
+			}
+		}
+		assertTrue("false positives: " + seen, seen < probes * 0.03);
+		assertTrue(filter.isFull());
+	}
+
+
+	@Test
+	public void concurrentAddsAreNeverLost() throws Exception {
+		final int idsPerThread = 20000;
+		final IdBloomFilter filter = new IdBloomFilter(THREADS * idsPerThread, 0.01);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < idsPerThread; i++) {
+							filter.add(id("key" + thread + "!" + i));
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		for (int t = 0; t < THREADS; t++) {
+			for (int i = 0; i < idsPerThread; i++) {
+				assertFalse("lost key" + t + "!" + i, filter.add(id("key" + t + "!" + i)));
+			}
+		}
+	}
+
+
+	@Test
+	public void racingAddsOfOneIdReportItNewAtLeastOnce() throws Exception {
+		final IdBloomFilter filter = new IdBloomFilter(1000, 0.01);
+		for (int round = 0; round < 200; round++) {
+			final BytesRef id = id("book!" + round);
+			final CountDownLatch start = new CountDownLatch(1);
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+			try {
+				List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+				for (int t = 0; t < THREADS; t++) {
+					results.add(executor.submit(new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							start.await();
+							return filter.add(id);
+						}
+					}));
+				}
+				start.countDown();
+				int added = 0;
+				for (Future<Boolean> result : results) {
+					if (result.get().booleanValue()) {
+						added++;
+					}
+				}
+				//More than one is possible, which is why the processor claims ids
+				assertTrue(added >= 1);
+				assertFalse(filter.add(id));
+			}
+			finally {
+				executor.shutdown();
+			}
+		}
+	}
+
+
+	private static BytesRef id(String id) {
+		return CompositeIdUpdateProcessorFactory.toUtf8(id);
+	}
+}
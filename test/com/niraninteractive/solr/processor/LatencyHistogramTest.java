@@ -0,0 +1,88 @@
+package com.niraninteractive.solr.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+/**
+ * Tests of the bucketing and percentiles of {@link LatencyHistogram}
+ *
+ * @author afajem
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void smallDurationsAreExact() {
+		for (long nanos = 0; nanos < 16; nanos++) {
+			assertEquals(nanos, LatencyHistogram.upperBound(LatencyHistogram.bucket(nanos)));
+		}
+	}
+
+
+	@Test
+	public void bucketsAreContiguousAndOrdered() {
+		for (int bucket = 1; bucket <= LatencyHistogram.bucket(Long.MAX_VALUE); bucket++) {
+			long lowest = LatencyHistogram.upperBound(bucket - 1) + 1;
+			long highest = LatencyHistogram.upperBound(bucket);
+			assertTrue(highest >= lowest);
+			assertEquals(bucket, LatencyHistogram.bucket(lowest));
+			assertEquals(bucket, LatencyHistogram.bucket(highest));
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)));
+	}
+
+
+	@Test
+	public void relativeErrorIsAtMostAnEighth() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long nanos = (random.nextLong() >>> 1) >>> random.nextInt(63);
+			long upperBound = LatencyHistogram.upperBound(LatencyHistogram.bucket(nanos));
+			assertTrue(nanos + " in bucket up to " + upperBound, upperBound >= nanos);
+			assertTrue(nanos + " in bucket up to " + upperBound, upperBound - nanos <= nanos / 8);
+		}
+	}
+
+
+	@Test
+	public void percentilesAreBucketUpperBounds() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 1000; micros++) {
+			histogram.record(micros * 1000);
+		}
+		histogram.record(-5);
+		NamedList<Object> stats = new NamedList<Object>();
+		histogram.addTo(stats, "add");
+
+		assertEquals(1001L, stats.get("addSamples"));
+		assertEquals(500500000 / 1000.0 / 1001, (Double) stats.get("addMeanMicros"), 0.001);
+		assertPercentile(500000, (Double) stats.get("addP50Micros"));
+		assertPercentile(900000, (Double) stats.get("addP90Micros"));
+		assertPercentile(990000, (Double) stats.get("addP99Micros"));
+		assertPercentile(1000000, (Double) stats.get("addMaxMicros"));
+	}
+
+
+	@Test
+	public void emptyHistogramReportsZeros() {
+		NamedList<Object> stats = new NamedList<Object>();
+		new LatencyHistogram().addTo(stats, "add");
+		assertEquals(0L, stats.get("addSamples"));
+		assertEquals(0.0, (Double) stats.get("addMeanMicros"), 0.0);
+		assertEquals(0.0, (Double) stats.get("addMaxMicros"), 0.0);
+	}
+
+
+	/**
+	 * Checks that a percentile is within the bucket of the expected duration
+	 */
+	private static void assertPercentile(long expectedNanos, double micros) {
+		long upperBound = LatencyHistogram.upperBound(LatencyHistogram.bucket(expectedNanos));
+		assertTrue(micros + " for " + expectedNanos, micros * 1000 >= expectedNanos);
+		assertEquals(upperBound / 1000.0, micros, 0.0);
+	}
+}
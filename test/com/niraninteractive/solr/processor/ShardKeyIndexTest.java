@@ -0,0 +1,182 @@
+package com.niraninteractive.solr.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link ShardKeyIndex}: lookups, what survives reopening after a
+ * sync or a crash, and compaction.
+ *
+ * @author afajem
+ */
+public class ShardKeyIndexTest {
+
+	private static final String DICTIONARY_FILE = "shard-keys.dat";
+
+	private File directory;
+	private ShardKeyIndex index;
+
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("shard-key-index", "");
+		assertTrue(directory.delete());
+		index = ShardKeyIndex.open(directory, 16);
+	}
+
+
+	@After
+	public void tearDown() {
+		index.close();
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+
+	@Test
+	public void getReturnsLastShardKey() {
+		index.put("book!1001", 5, "book");
+		index.put("movie!1002", 6, "movie");
+		assertEquals("book", index.get("1001"));
+		assertEquals("movie", index.get("1002"));
+		assertNull(index.get("1003"));
+
+		index.put("movie!1001", 6, "movie");
+		assertEquals("movie", index.get("1001"));
+		assertEquals(2, index.shardKeyCount());
+	}
+
+
+	@Test
+	public void removeForgetsShardKey() {
+		index.put("book!1001", 5, "book");
+		index.remove("1001");
+		index.remove("1003");
+		assertNull(index.get("1001"));
+		assertNull(index.get("1003"));
+
+		index.put("book!1001", 5, "book");
+		assertEquals("book", index.get("1001"));
+	}
+
+
+	@Test
+	public void syncedEntriesSurviveReopening() throws IOException {
+		index.put("book!1001", 5, "book");
+		index.put("movie/8!1002", 8, "movie/8");
+		index.sync();
+		index.close();
+
+		index = ShardKeyIndex.open(directory, 16);
+		assertEquals("book", index.get("1001"));
+		assertEquals("movie/8", index.get("1002"));
+	}
+
+
+	@Test
+	public void incompleteDictionaryRecordIsDropped() throws IOException {
+		index.put("book!1001", 5, "book");
+		index.put("movie!1002", 6, "movie");
+		index.sync();
+		index.close();
+
+		//A crash in the middle of the second record
+		File dictionary = new File(directory, DICTIONARY_FILE);
+		truncate(dictionary, dictionary.length() - 2);
+
+		index = ShardKeyIndex.open(directory, 16);
+		assertEquals("book", index.get("1001"));
+		assertNull(index.get("1002"));
+		assertEquals(1, index.shardKeyCount());
+		assertEquals(2 + "book".length(), dictionary.length());
+	}
+
+
+	@Test
+	public void entryPointingAtLostShardKeyIsAMiss() throws IOException {
+		index.put("book!1001", 5, "book");
+		index.put("movie!1002", 6, "movie");
+		index.sync();
+		index.close();
+
+		//The table reached the disk but the second dictionary record did not
+		File dictionary = new File(directory, DICTIONARY_FILE);
+		truncate(dictionary, 2 + "book".length());
+
+		index = ShardKeyIndex.open(directory, 16);
+		assertNull(index.get("1002"));
+
+		//The lost record's ordinal now stands for another shard key
+		index.put("music!1003", 6, "music");
+		assertEquals("music", index.get("1003"));
+		assertNull(index.get("1002"));
+		assertEquals("book", index.get("1001"));
+	}
+
+
+	@Test
+	public void compactionKeepsEveryEntry() throws Exception {
+		int ids = 1000;
+		for (int i = 0; i < ids; i++) {
+			index.put("key" + i % 7 + "!" + i, 5, "key" + i % 7);
+		}
+		for (int i = 0; i < ids; i += 3) {
+			index.remove(String.valueOf(i));
+		}
+		//Compactions run in the background
+		for (int wait = 0; wait < 100 && (index.getCompactions() == 0 || index.capacity() < ids); wait++) {
+			Thread.sleep(50);
+		}
+		assertTrue(index.getCompactions() > 0);
+		assertEquals(0, index.getCompactionFailures());
+		assertEquals(0, index.getDroppedEntries());
+		assertEntries(ids);
+
+		index.sync();
+		index.close();
+		index = ShardKeyIndex.open(directory, 16);
+		assertEntries(ids);
+		int tables = 0;
+		for (String name : directory.list()) {
+			if (!name.equals(DICTIONARY_FILE)) {
+				tables++;
+			}
+		}
+		assertEquals(1, tables);
+	}
+
+
+	private void assertEntries(int ids) {
+		for (int i = 0; i < ids; i++) {
+			if (i % 3 == 0) {
+				assertNull(index.get(String.valueOf(i)));
+			}
+			else {
+				assertEquals("key" + i % 7, index.get(String.valueOf(i)));
+			}
+		}
+	}
+
+
+	private static void truncate(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+}